@@ -54,18 +54,17 @@ public final class Base64
   public static String encode(byte[] in, boolean linebreaks) {
     StringBuffer out = new StringBuffer();
 
-    byte[] buf = new byte[3];
-
     int j = 0;
     for (int i = 0; i < in.length; i += 3) {
-      buf[0] = in[i];
-      buf[1] = (i + 1 < in.length ? in[(i + 1)] : 0);
-      buf[2] = (i + 2 < in.length ? in[(i + 2)] : 0);
-
-      int a = buf[0] >>> 2;
-      int b = buf[0] << 4 & 0x3F | buf[1] >>> 4;
-      int c = buf[1] << 2 & 0x3F | buf[2] >>> 6;
-      int d = buf[2] & 0x3F;
+      // as unsigned: a byte >= 0x80 would shift in the sign bits
+      int b0 = in[i] & 0xFF;
+      int b1 = (i + 1 < in.length ? in[(i + 1)] & 0xFF : 0);
+      int b2 = (i + 2 < in.length ? in[(i + 2)] & 0xFF : 0);
+
+      int a = b0 >>> 2;
+      int b = b0 << 4 & 0x3F | b1 >>> 4;
+      int c = b1 << 2 & 0x3F | b2 >>> 6;
+      int d = b2 & 0x3F;
 
       if ((linebreaks) && (j % 76 == 0)) {
         out.append("\n");
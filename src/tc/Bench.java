@@ -0,0 +1,299 @@
+package tc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.spec.SecretKeySpec;
+
+import tc.Message.MessageType;
+
+/**
+ * Micro benchmarks of the message pipeline, to get baseline numbers that can
+ * be compared across versions. This is a small harness rather than JMH
+ * because the project is built with plain javac (see build.sh): every
+ * benchmark runs for a warmup period and then for a number of timed rounds;
+ * the result of every operation is stored in a field so the JIT can't drop
+ * the work. Numbers are only comparable on the same machine and JVM.
+ *
+ * Call as: java -cp tc.jar tc.Bench [-r rounds] [-t ms per round] [name prefix ...]
+ * e.g.     java -cp tc.jar tc.Bench message archive
+ */
+public class Bench {
+
+    private static final String BODY = "Alice was beginning to get very tired of sitting by her sister on the bank";
+    private static final byte[] DEFAULT_KEY = new byte[]{-25,101,-45,12,93,-38,-56,-7,-99,109,-83,78,-90,90,96,106};
+
+    // escape hatch for results, see class comment
+    static Object sink;
+
+    private static int rounds = 5;
+    private static long roundMillis = 1000;
+
+    /** One benchmark; {@link #run(int)} is called with increasing operation numbers. */
+    abstract static class Case {
+        final String name;
+
+        Case (String name){
+            this.name = name;
+        }
+
+        void setUp () throws Exception {
+        }
+
+        abstract Object run (int i) throws Exception;
+
+        void tearDown () throws Exception {
+        }
+    }
+
+    public static void main (String[] args) throws Exception {
+        List<String> prefixes = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            if ("-r".equals(args[i]) && i + 1 < args.length) {
+                rounds = Integer.parseInt(args[++i]);
+            } else if ("-t".equals(args[i]) && i + 1 < args.length) {
+                roundMillis = Long.parseLong(args[++i]);
+            } else {
+                prefixes.add(args[i]);
+            }
+        }
+        Logger.setLogLevel(Level.INFO);
+
+        System.out.println("java " + System.getProperty("java.version") + ", " +
+                Runtime.getRuntime().availableProcessors() + " cpus, " + rounds + " x " + roundMillis + " ms");
+        System.out.println(String.format("%-34s %10s %10s %10s %14s", "benchmark", "ns/op", "min", "max", "ops/s"));
+        for (Case c : cases()) {
+            if (!matches(c.name, prefixes)) continue;
+            c.setUp();
+            try {
+                measure(c);
+            } finally {
+                c.tearDown();
+            }
+        }
+    }
+
+    private static boolean matches (String name, List<String> prefixes){
+        if (prefixes.isEmpty()) return true;
+        for (String p : prefixes) {
+            if (name.startsWith(p)) return true;
+        }
+        return false;
+    }
+
+    private static void measure (Case c) throws Exception {
+        // warmup: one round, unreported
+        runFor(c, roundMillis);
+        double min = Double.MAX_VALUE;
+        double max = 0;
+        double sum = 0;
+        for (int r = 0; r < rounds; r++) {
+            double nsPerOp = runFor(c, roundMillis);
+            min = Math.min(min, nsPerOp);
+            max = Math.max(max, nsPerOp);
+            sum += nsPerOp;
+        }
+        double mean = sum / rounds;
+        System.out.println(String.format("%-34s %10.1f %10.1f %10.1f %14.0f", c.name, mean, min, max, 1e9 / mean));
+    }
+
+    // ns per operation over about the given time
+    private static double runFor (Case c, long millis) throws Exception {
+        long deadline = System.nanoTime() + millis * 1000000L;
+        long ops = 0;
+        long start = System.nanoTime();
+        long now;
+        int batch = 1;
+        do {
+            for (int i = 0; i < batch; i++) {
+                sink = c.run((int) ops++);
+            }
+            if (batch < 1024) batch *= 2;
+            now = System.nanoTime();
+        } while (now < deadline);
+        return (double) (now - start) / ops;
+    }
+
+    private static List<Case> cases (){
+        final Message message = new Message("alice", MessageType.USERMSG, BODY);
+        final String structured = message.toStructuredString();
+        final byte[] binaryFrame = Framing.BINARY.encode(message);
+        final byte[] textFrame = Framing.TEXT.encode(message);
+
+        List<Case> cases = new ArrayList<Case>();
+
+        cases.add(new Case("message.parse") {
+            Object run (int i) throws Exception {
+                return new Message(structured);
+            }
+        });
+        cases.add(new Case("message.toStructuredString") {
+            Object run (int i){
+                return new Message("alice", MessageType.USERMSG, 1234567890123L, BODY, "96c6b7be3284")
+                        .toStructuredString();
+            }
+        });
+        cases.add(new Case("message.toStructuredString.cached") {
+            Object run (int i){
+                return message.toStructuredString();
+            }
+        });
+        cases.add(new Case("framing.text.encode") {
+            Object run (int i){
+                return Framing.TEXT.encode(new Message("alice", MessageType.USERMSG, 1234567890123L, BODY,
+                        "96c6b7be3284"));
+            }
+        });
+        cases.add(new Case("framing.binary.encode") {
+            Object run (int i){
+                return Framing.BINARY.encode(new Message("alice", MessageType.USERMSG, 1234567890123L, BODY,
+                        "96c6b7be3284"));
+            }
+        });
+        cases.add(new Case("framing.text.decode") {
+            Object run (int i) throws Exception {
+                return Framing.TEXT.decode(ByteBuffer.wrap(textFrame));
+            }
+        });
+        cases.add(new Case("framing.binary.decode") {
+            Object run (int i) throws Exception {
+                return Framing.BINARY.decode(ByteBuffer.wrap(binaryFrame));
+            }
+        });
+
+        // payload encryption as done by TextUI
+        final ObjectCrypter crypter = new ObjectCrypter(new byte[]{0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08},
+                new byte[]{0x05, 0x06, 0x07, 0x08, 0x09, 0x04, 0x03, 0x01});
+        final String encrypted = crypter.encryptString(BODY);
+        cases.add(new Case("objectcrypter.encryptString") {
+            Object run (int i){
+                return crypter.encryptString(BODY);
+            }
+        });
+        cases.add(new Case("objectcrypter.decryptString") {
+            Object run (int i){
+                return crypter.decryptString(encrypted);
+            }
+        });
+        // DES and hex, as written before payload format v2
+        final String encryptedV1 = crypter.encryptStringV1(BODY);
+        cases.add(new Case("objectcrypter.encryptString.v1") {
+            Object run (int i){
+                return crypter.encryptStringV1(BODY);
+            }
+        });
+        cases.add(new Case("objectcrypter.decryptString.v1") {
+            Object run (int i){
+                return crypter.decryptString(encryptedV1);
+            }
+        });
+
+        // what Client.sendMessage() does with encryption on: one frame through the RC4 stream
+        cases.add(new Case("client.rc4Stream") {
+            private OutputStream out;
+
+            void setUp () throws Exception {
+                Cipher cipher = Cipher.getInstance("RC4");
+                cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(DEFAULT_KEY, "RC4"));
+                out = new CipherOutputStream(new OutputStream() {
+                    public void write (int b){
+                    }
+                    public void write (byte[] b, int off, int len){
+                        sink = b;
+                    }
+                }, cipher);
+            }
+
+            Object run (int i) throws IOException {
+                out.write(textFrame);
+                out.flush();
+                return out;
+            }
+        });
+
+        // the same with "-e gcm": one record per frame
+        cases.add(new Case("client.gcmRecord") {
+            private OutputStream out;
+
+            void setUp () throws Exception {
+                out = new GcmTransport.SealingOutputStream(new OutputStream() {
+                    public void write (int b){
+                    }
+                    public void write (byte[] b, int off, int len){
+                        sink = b;
+                    }
+                }, GcmTransport.forClient(DEFAULT_KEY, GcmTransport.newNonce(), GcmTransport.newNonce())[0]);
+            }
+
+            Object run (int i) throws IOException {
+                out.write(textFrame);
+                out.flush();
+                return out;
+            }
+        });
+
+        // Hub.addMessageToArchive() and Hub.getMessageArchiveSince() delegate to the MessageArchive
+        final long base = System.currentTimeMillis();
+        final MessageArchive archive = new MessageArchive(400);
+        final MessageArchive fullArchive = new MessageArchive(400);
+        for (int i = 0; i < 400; i++) {
+            archive.add(new Message("alice", MessageType.USERMSG, base + i, BODY, "id" + i));
+            fullArchive.add(new Message("alice", MessageType.USERMSG, base + i, BODY, "id" + i));
+        }
+        cases.add(new Case("archive.add") {
+            Object run (int i){
+                Message m = new Message("alice", MessageType.USERMSG, base + 400 + i, BODY, "96c6b7be3284");
+                archive.add(m);
+                return m;
+            }
+        });
+        cases.add(new Case("archive.since.latest10") {
+            Object run (int i){
+                return fullArchive.since(base + 389);
+            }
+        });
+
+        // the message is built at the call site whether it is logged or not
+        cases.add(new Case("logger.disabled") {
+            Object run (int i){
+                Logger.log(Level.FINEST, "Recv message: " + structured);
+                return null;
+            }
+        });
+        cases.add(new Case("logger.disabled.format") {
+            Object run (int i){
+                Logger.log(Level.FINEST, "Recv message: %s", structured);
+                return null;
+            }
+        });
+        // the cost for the logging thread; when the writer thread can't keep up, lines are dropped
+        cases.add(new Case("logger.enabled") {
+            private File file;
+
+            void setUp () throws IOException {
+                file = File.createTempFile("tc-bench-", ".log");
+                Logger.setLogFile(file);
+            }
+
+            Object run (int i){
+                Logger.log(Level.INFO, "Recv message: " + structured);
+                return null;
+            }
+
+            void tearDown () throws IOException {
+                Logger.closeLogFile();
+                if (!file.delete()) file.deleteOnExit();
+            }
+        });
+
+        return cases;
+    }
+
+}
@@ -2,24 +2,22 @@ package tc;
 
 import static tc.Message.MessageType;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.List;
-import java.util.Observable;
-import java.util.Observer;
-import java.util.Timer;
-import java.util.TimerTask;
 import java.util.logging.Level;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
@@ -28,61 +26,67 @@ import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
 
 /**
- * Represents a connection with a client (SwingUI or TextUI). Handles input and
- * output streams and informs the observer {@link Hub} of incoming data.
+ * Represents a connection with a client (SwingUI or TextUI), served by its own
+ * thread. Handles input and output streams and informs the observer {@link Hub}
+ * of incoming data.
  * 
  * @author ok
  * 
  */
-public class Client extends Observable implements Observer, Runnable {
-    
-    private static final long ARCHIVE_INTERVAL = 3600*1000L;
+public class Client extends Connection implements Runnable {
     
     static Level logLevel = Level.INFO;
-    private static final String ENC_UTF8 = "UTF-8";
-    private String userName = "";
-    private long lastHeartbeat = System.currentTimeMillis();
 
     private Socket socket;
-    private BufferedReader sendIsReader;
-    private BufferedWriter sendOsWriter;
+    private InputStream sendIs;
+    private OutputStream sendOs;
+    // text until the VERSION ACK, then what the client asked for; set before the threads start
+    private Framing framing = Framing.TEXT;
     private boolean useEncryption;
     private Cipher decCipher;
     private Cipher encCipher;
     private byte[] defaultKey = new byte[]{-25,101,-45,12,93,-38,-56,-7,-99,109,-83,78,-90,90,96,106};
+    // "-e gcm": no RC4 streams, the client must ask for GcmTransport records
+    private boolean gcmRequired;
+    private byte[] secretKey;
+    // if the client asked for compression
+    private Deflater deflater;
+    private Inflater inflater;
     
     private volatile boolean inputStreamClosed;
+    // fan-out from other clients' threads and answers from the own thread share the writer
+    private final Object sendLock = new Object();
+    // guarded by sendLock; the output stream and the deflater are closed
+    private boolean outputClosed;
     
-    private Timer heartbeatTimer;
-    
-    private Hub hub;
-    
-    private int heartbeatInterval;
     
     public Client (Socket clientSocket, Hub hub, Options options) throws IllegalStateException{
+        super(hub, options);
         this.socket = clientSocket;
-        this.hub = hub;
-        addObserver(hub);
         
-        if (options.optUseEncryption) setEncryption(options.optSecretKey);
-        heartbeatInterval = options.optHeartbeat;
+        secretKey = options.optSecretKey == null ? defaultKey : options.optSecretKey;
+        if (options.optUseEncryption) {
+            if (Options.CIPHER_GCM.equals(options.optCipher)) {
+                gcmRequired = true;
+            } else {
+                setEncryption(options.optSecretKey);
+            }
+        }
         
         Logger.log(Level.INFO, "================ New Client connection =========");
 
         try {
             Logger.log(Level.INFO, "IP address: " + clientSocket.getInetAddress());
-            OutputStream sendOs = clientSocket.getOutputStream();
-            InputStream sendIs = clientSocket.getInputStream();
+            OutputStream os = clientSocket.getOutputStream();
+            InputStream is = clientSocket.getInputStream();
             if (useEncryption){
                 Logger.log(Level.FINE, "Initializing cipher streams");
-                sendOsWriter = new BufferedWriter(new OutputStreamWriter(
-                        new CipherOutputStream(sendOs, encCipher), ENC_UTF8));
-                sendIsReader = new BufferedReader(new InputStreamReader(
-                        new CipherInputStream(sendIs, decCipher), ENC_UTF8));
-            } else {
-                sendOsWriter = new BufferedWriter(new OutputStreamWriter(sendOs, ENC_UTF8));
-                sendIsReader = new BufferedReader(new InputStreamReader(sendIs, ENC_UTF8));
+                os = new CipherOutputStream(os, encCipher);
+                is = new CipherInputStream(is, decCipher);
             }
+            // unbuffered: every write is one complete (shared, already encoded) frame
+            sendOs = os;
+            sendIs = new BufferedInputStream(is);
 
             Message versionMessage = null;
             try {
@@ -90,20 +94,59 @@ public class Client extends Observable implements Observer, Runnable {
                 versionMessage = receiveMessage();
                 if (versionMessage != null){
                     String rcvVer = versionMessage.messageBody;
-                    if (! Hub.VERSION.equals(rcvVer)){
+                    Framing clientFraming = Framing.forVersion(rcvVer);
+                    String rejection = null;
+                    GcmTransport[] gcm = null;
+                    // the hub's nonce of the gcm keys, sent back in the ACK
+                    String hubNonce = null;
+                    if (clientFraming == null){
+                        rejection = "Client's version wrong: " + rcvVer + " vs my " + Hub.VERSION;
+                    } else {
+                        String nonce = Hub.capabilityValue(rcvVer, Hub.CAPABILITY_GCM);
+                        if (nonce != null) {
+                            try {
+                                hubNonce = GcmTransport.newNonce();
+                                gcm = GcmTransport.forHub(secretKey, nonce, hubNonce);
+                            } catch (GeneralSecurityException gse) {
+                                rejection = "No " + Hub.CAPABILITY_GCM + " encryption: " + gse.getMessage();
+                            }
+                        } else if (gcmRequired) {
+                            rejection = "Hub requires " + Hub.CAPABILITY_GCM + " encryption (-e gcm)";
+                        }
+                    }
+                    if (rejection != null){
                         Message msg = new Message(versionMessage.userName, versionMessage.messageType, 
-                                "Client's version wrong: " + rcvVer + " vs my " + Hub.VERSION, versionMessage.messageId); 
+                                rejection, versionMessage.messageId); 
+                        Metrics.handshakeFailed(clientFraming == null ? Metrics.HANDSHAKE_VERSION : Metrics.HANDSHAKE_ENCRYPTION);
                         sendMessage (msg);
-                        throw new IllegalStateException("Client's version wrong: " + rcvVer + " vs my " + Hub.VERSION);
+                        throw new IllegalStateException(rejection);
                     } else {
                         Logger.log(Level.FINE, "  -- Sends version " + rcvVer);
                     }
-                    sendMessage(Message.createAckMessage(versionMessage));
+                    Message ack = Message.createAckMessage(versionMessage);
+                    if (hubNonce != null) ack.messageBody = GcmTransport.ackBody(hubNonce);
+                    sendMessage(ack);
+                    framing = clientFraming;
+                    if (gcm != null) {
+                        sendOs = new GcmTransport.SealingOutputStream(sendOs, gcm[0]);
+                        sendIs = new BufferedInputStream(new GcmTransport.OpeningInputStream(sendIs, gcm[1]));
+                        Logger.log(Level.FINE, "  -- AES/GCM on");
+                    }
+                    if (Hub.hasCapability(rcvVer, Hub.CAPABILITY_DEFLATE)) {
+                        // the streaming context of each direction works as a dictionary of the connection
+                        deflater = new Deflater();
+                        inflater = new Inflater();
+                        sendOs = new DeflaterOutputStream(sendOs, deflater, true);
+                        sendIs = new BufferedInputStream(new InflaterInputStream(sendIs, inflater));
+                        Logger.log(Level.FINE, "  -- Compression on");
+                    }
                 } else {
+                    Metrics.handshakeFailed(Metrics.HANDSHAKE_PROTOCOL);
                     throw new IllegalStateException ("Version string could not be determined (was empty).");
                 }
             } catch (Message.MessageException iae) {
                 Logger.log (Level.WARNING, "Expected version message.", iae);
+                Metrics.handshakeFailed(Metrics.HANDSHAKE_PROTOCOL);
                 shutdown();
                 throw new IllegalStateException ("Version string could not be determined.");
             }
@@ -115,21 +158,22 @@ public class Client extends Observable implements Observer, Runnable {
                     Logger.log(Level.INFO, "  -- Connect: '" + connectMessage.toStructuredString() + "'");
                     sendMessage(Message.createAckMessage(connectMessage));
                 } else {
+                    Metrics.handshakeFailed(Metrics.HANDSHAKE_PROTOCOL);
                     throw new IllegalStateException("Expected connect message with client user name (but was empty).");
                 }
             } catch (Message.MessageException iae) {
+                Metrics.handshakeFailed(Metrics.HANDSHAKE_PROTOCOL);
                 throw new IllegalStateException("Expected connect message with client user name.", iae);
             }
             
             userName = connectMessage.messageBody;
 
             Logger.log(Level.INFO, "  -- User: '" + userName + "'");
-            for (Client cl : Hub.clients){
-                if (userName.equals(cl.userName)){
-                    Logger.log(Level.WARNING, "user '" + userName + "' already known");
-                    shutdown();
-                    throw new IllegalStateException ("user '" + userName + "' already known, rejecting connection.");
-                }
+            if (!Hub.claimUserName(userName, this)){
+                Logger.log(Level.WARNING, "user '" + userName + "' already known");
+                Metrics.handshakeFailed(Metrics.HANDSHAKE_USER);
+                shutdown();
+                throw new IllegalStateException ("user '" + userName + "' already known, rejecting connection.");
             }
 
             try {
@@ -138,6 +182,7 @@ public class Client extends Observable implements Observer, Runnable {
                     Logger.log(Level.FINE, "  -- Heartbeat: '" + heartbeatMessage.toStructuredString() + "'");
                     sendMessage(Message.createAckMessage(heartbeatMessage));
                 } else {
+                    Metrics.handshakeFailed(Metrics.HANDSHAKE_PROTOCOL);
                     throw new IllegalStateException("Expected connect message with heartbeat interval (but was empty).");
                 }
                 
@@ -146,26 +191,33 @@ public class Client extends Observable implements Observer, Runnable {
                     heartbeatInterval = hb;
                     Logger.log(Level.FINE, "  -- setting heartbeat interval to "+heartbeatInterval+"ms");
                 } catch (NumberFormatException nfe){
+                    Metrics.handshakeFailed(Metrics.HANDSHAKE_PROTOCOL);
                     throw new IllegalStateException("Heartbeat interval is not a number.", nfe);
                 }
             } catch (Message.MessageException iae) {
+                Metrics.handshakeFailed(Metrics.HANDSHAKE_PROTOCOL);
                 throw new IllegalStateException("Expected connect message with heartbeat interval.");
             }
             clientSocket.setSoTimeout(0); 
 
         } catch (IOException ioe) {
             Logger.log(Level.SEVERE, "While connecting: ",  ioe);
+            Metrics.handshakeFailed(ioe instanceof SocketTimeoutException ? Metrics.HANDSHAKE_TIMEOUT : Metrics.HANDSHAKE_IO);
             shutdown();
+            if (inflater != null) inflater.end();
             throw new IllegalStateException (ioe);
+        } catch (IllegalStateException ise) {
+            // give the user name back, end the deflater
+            shutdown();
+            if (inflater != null) inflater.end();
+            throw ise;
         }
 
+        Hub.established(this);
         // TODO: better to do this outwith constructor, or make Client final
-        Thread clientThread = new Thread(this);
-        clientThread.setName(userName);
+        Thread clientThread = Hub.newConnectionThread(this, userName);
         clientThread.start();
-        
-        heartbeatTimer = new Timer(true);
-        heartbeatTimer.schedule(new HeartbeatCheck(), heartbeatInterval, heartbeatInterval);
+        Hub.newConnectionThread(new Writer(), userName + "-w").start();
 
     }
     
@@ -210,30 +262,35 @@ public class Client extends Observable implements Observer, Runnable {
      * @throws Message.MessageException
      */
     private Message receiveMessage () throws IOException, Message.MessageException {
-        StringBuilder msgStr = new StringBuilder();
         if (inputStreamClosed) return null;
         
-        int c;
-        while ((c = sendIsReader.read()) != -1 && c != Options.EOL){
-            Logger.log(Level.FINEST, String.format("... %4d : %c", c, c));
-            msgStr.append((char)c);
-        }
-        if (c == -1) {
+        Message msg = framing.read(sendIs);
+        if (msg == null) {
             inputStreamClosed = true;
         }
-
-        Message msg = null;
-        if (msgStr.length() > 1){
-            msg = new Message(msgStr.toString());
-        }
         return msg;
     }
     
-    private void sendMessage( Message msg) throws IOException {
-        sendOsWriter.write(msg.toStructuredString());
-        sendOsWriter.write(Options.EOL);
-        sendOsWriter.flush();
-        Logger.log (Level.FINEST, "Send message: " + msg.toStructuredString());
+    void sendMessage( Message msg) throws IOException {
+        byte[] frame = framing.encode(msg);
+        synchronized (sendLock) {
+            if (outputClosed) throw new IOException("Connection closed: " + userName);
+            sendOs.write(frame);
+            sendOs.flush();
+        }
+        if (Logger.isLoggable(Level.FINEST)) Logger.log (Level.FINEST, "Send message: " + msg.toStructuredString());
+    }
+    
+    // e.g. the archive: one write and flush, not one per message
+    @Override
+    void sendMessages (List<Message> msgs) throws IOException {
+        byte[] frames = framing.encode(msgs);
+        synchronized (sendLock) {
+            if (outputClosed) throw new IOException("Connection closed: " + userName);
+            sendOs.write(frames);
+            sendOs.flush();
+        }
+        if (Logger.isLoggable(Level.FINEST)) Logger.log (Level.FINEST, "Send %d messages, %d bytes", msgs.size(), frames.length);
     }
     
     public void run(){
@@ -254,53 +311,9 @@ public class Client extends Observable implements Observer, Runnable {
                     continue;
                 }
 
+                alive();
                 if (message == null || message.messageType == null) continue;
-                Logger.log(Level.FINEST, "Recv message: "+message.toStructuredString());
-                
-                Message backMsg = null;
-                if (MessageType.USERMSG == message.messageType || MessageType.ISTYPING == message.messageType){
-                    Logger.log (Level.FINEST, "  -- rcv::"+message.toStructuredString());
-                    lastHeartbeat = System.currentTimeMillis();
-                    setChanged();
-                    // notify hub
-                    notifyObservers(message);
-
-                    backMsg = Message.createAckMessage(message);
-                    
-                } else  if (MessageType.HEARTBEAT == message.messageType){
-                    //Logger.log (Level.FINEST, "  -- rcv::user="+userName+"- heartbeat");
-                    lastHeartbeat = System.currentTimeMillis();
-                    backMsg = Message.createAckMessage(message);
-                    
-                } else  if (MessageType.ARCHIVE == message.messageType){
-                    List<Message> archive = null;
-                    if (!"latest".equals(message.messageBody)) { // messages since time x
-                        archive = hub.getMessageArchiveSince(Long.parseLong(message.messageBody));
-                    } else { // messages of age ARCHIVE_INTERVAL or younger
-                        archive = hub.getMessageArchive(ARCHIVE_INTERVAL);
-                    }
-                    for (Message msg : archive) {
-                        msg.messageType = MessageType.ARCHIVEDMSG;
-                        sendMessage (msg);
-                        //try {Thread.sleep(100);} catch (InterruptedException e) {}
-                    }
-                    
-                } else  if (MessageType.WHOSONLINE == message.messageType){
-                    StringBuilder sb = new StringBuilder();
-                    for (Client c : Hub.clients){
-                        sb.append(c.userName).append("; ");
-                    }
-                    Message msg = new Message(userName, MessageType.WHOSONLINE, sb.toString()); 
-                    sendMessage (msg);
-                    
-                } else  if (MessageType.SHUTDOWN == message.messageType){
-                    Logger.log (Level.FINE, userName + " sends Shutdown");
-                    shutdown();
-                }
-                
-                if (backMsg != null){
-                    sendMessage (backMsg);
-                }
+                handleMessage(message);
 
             }
         } catch (SocketException se){
@@ -311,66 +324,64 @@ public class Client extends Observable implements Observer, Runnable {
         } finally {
             Logger.log(Level.INFO, "Client has finished: " + userName);
             shutdown();
+            // only this thread inflates; after shutdown(), which reads its counters
+            if (inflater != null) inflater.end();
         }
     }
     
-    //@Override
-    public void update (Observable client, Object arg){
-        if (!(arg instanceof Message)){
-            Logger.log (Level.SEVERE, "Client.update() got wrong Object type, was expecting Message");
-        }
-        
-        try{
-            Message msg = (Message) arg;
-            if (userName.equals(msg.userName)){
-                // don't copy myself
-                return;
-            }
-            Logger.log(Level.FINER, "Schreibe an '"+userName+"': "+msg.messageBody);
-            sendMessage(msg);
-        } catch (IOException ioe){
-            Logger.log(Level.WARNING, "closed, remove myself from Hub " + this.toString(), ioe);
-            shutdown();
-        }
-    }
-    
-    private void shutdown(){
+    void shutdown(){
         hub.removeClient(Client.this);
         inputStreamClosed = true;
-        if (heartbeatTimer != null) heartbeatTimer.cancel();
+        outbound.close();
+        liveness.cancel();
 
+        // the socket first: a writer blocked on a full TCP window gives up sendLock, and closing
+        // the deflater or cipher stream doesn't flush into a socket that takes nothing
         try {
-            if (sendOsWriter != null) sendOsWriter.close();
+            if (socket != null) socket.close();
         } catch (IOException e) {
             Logger.log (Level.FINE, "Client shutdown: " + e);
         }
-        try {
-            if (sendIsReader != null) sendIsReader.close();
-        } catch (IOException e) {
-            Logger.log (Level.FINE, "Client shutdown: " + e);
+        synchronized (sendLock) {
+            if (!outputClosed) {
+                outputClosed = true;
+                try {
+                    if (sendOs != null) sendOs.close();
+                } catch (IOException e) {
+                    Logger.log (Level.FINE, "Client shutdown: " + e);
+                }
+                if (deflater != null) {
+                    if (Logger.isLoggable(Level.FINE)) {
+                        Logger.log(Level.FINE, "Compression of %s: sent %d -> %d bytes, received %d <- %d bytes",
+                                userName, deflater.getBytesRead(), deflater.getBytesWritten(),
+                                inflater.getBytesWritten(), inflater.getBytesRead());
+                    }
+                    deflater.end();
+                }
+            }
         }
         try {
-            if (socket != null) socket.close();
+            if (sendIs != null) sendIs.close();
         } catch (IOException e) {
             Logger.log (Level.FINE, "Client shutdown: " + e);
-        } 
-        
+        }
     }
     
-    @Override
-    public String toString(){
-        return "'"+userName+"'";
-    }
-
-    private class HeartbeatCheck extends TimerTask {
-        @Override
+    /** Writes broadcasts from other clients, so the Hub never waits for this client's socket. */
+    private class Writer implements Runnable {
         public void run() {
-            if (System.currentTimeMillis() - lastHeartbeat > heartbeatInterval * 2) {
-                Logger.log (Level.WARNING, "Client " + userName + 
-                        " has not sent a heartbeat within " + heartbeatInterval*2 + "ms");
+            try {
+                Message msg;
+                while ((msg = outbound.take()) != null) {
+                    sendMessage(msg);
+                }
+            } catch (InterruptedException ie) {
+                Logger.log(Level.FINE, "Writer interrupted: " + userName);
+            } catch (IOException ioe) {
+                Logger.log(Level.WARNING, "closed, remove myself from Hub " + Client.this.toString(), ioe);
                 shutdown();
             }
-        }   
+        }
     }
 
 }
@@ -0,0 +1,207 @@
+package tc;
+
+import static tc.Message.MessageType;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Observable;
+import java.util.logging.Level;
+
+/**
+ * A connected client as seen from the {@link Hub}, independent of how the
+ * connection is served (one thread per connection in {@link Client}, or an
+ * event loop in {@link NioServer}).
+ * Handles the messages of an established connection and informs the observer
+ * {@link Hub} of incoming user messages.
+ *
+ * @author ok
+ *
+ */
+abstract class Connection extends Observable {
+
+    static final long ARCHIVE_INTERVAL = 3600*1000L;
+    // ARCHIVE body "seq:<n>,<time>": what a client that has seen sequence number n missed
+    static final String ARCHIVE_SEQ = "seq:";
+
+    // one thread watches the liveness of all connections, whatever the hub mode; ticks of 100ms,
+    // one turn of the wheel is 51.2s. In a holder, so that it is started by the first connection
+    // and not by a UI that only uses Hub's version helpers
+    private static final class Wheel {
+        static final TimingWheel timingWheel = new TimingWheel("Heartbeat", 100, 512);
+    }
+
+    String userName = "";
+    // past the handshake: gets broadcasts and is online
+    volatile boolean established;
+    // closes the connection if the handshake takes too long, or nothing arrives for two heartbeat intervals
+    final TimingWheel.Timeout liveness;
+    volatile int heartbeatInterval;
+    Hub hub;
+    // broadcasts from other clients, written out by the connection's own writer
+    final OutboundQueue outbound;
+
+    Connection (Hub hub, Options options){
+        this.hub = hub;
+        this.heartbeatInterval = options.optHeartbeat;
+        this.outbound = new OutboundQueue(this, options.optOutboundQueueSize, options.optOverflowPolicy);
+        addObserver(hub);
+        // until the handshake is done, then moved on by alive()
+        liveness = Wheel.timingWheel.schedule(Wheel.timingWheel.now() + options.optHeartbeat, new Runnable() {
+            public void run (){
+                livenessExpired();
+            }
+        });
+    }
+
+    /** Write a message to the client. */
+    abstract void sendMessage (Message msg) throws IOException;
+
+    /** Write several messages at once; the default writes them one by one. */
+    void sendMessages (List<Message> msgs) throws IOException {
+        for (Message msg : msgs) {
+            sendMessage(msg);
+        }
+    }
+
+    /** Called after a broadcast has been added to {@link #outbound}. */
+    void broadcastQueued (){
+    }
+
+    /** Close the connection and remove it from the Hub. */
+    abstract void shutdown ();
+
+    /**
+     * Act on a message received after the handshake.
+     * @param message a message with a non-null type
+     * @throws IOException if the answer could not be sent
+     */
+    void handleMessage (Message message) throws IOException {
+        // binary frames have no structured string until asked for one
+        if (Logger.isLoggable(Level.FINEST)) Logger.log(Level.FINEST, "Recv message: "+message.toStructuredString());
+
+        Trace.stamp(message, Trace.HUB_RECEIVE);
+        Metrics.messageReceived(message);
+        Message backMsg = null;
+        if (MessageType.USERMSG == message.messageType || MessageType.ISTYPING == message.messageType){
+            if (Logger.isLoggable(Level.FINEST)) Logger.log (Level.FINEST, "  -- rcv::"+message.toStructuredString());
+            setChanged();
+            // notify hub
+            notifyObservers(message);
+
+            backMsg = Message.createAckMessage(message);
+
+        } else  if (MessageType.HEARTBEAT == message.messageType){
+            backMsg = Message.createAckMessage(message);
+
+        } else  if (MessageType.ARCHIVE == message.messageType){
+            List<Message> archive = null;
+            if (message.messageBody.startsWith(ARCHIVE_SEQ)) { // messages after sequence number n, or since time x
+                try {
+                    int comma = message.messageBody.indexOf(',');
+                    archive = hub.getMessageArchiveAfter(
+                            Long.parseLong(message.messageBody.substring(ARCHIVE_SEQ.length(), comma)),
+                            Long.parseLong(message.messageBody.substring(comma + 1)));
+                } catch (RuntimeException re){
+                    Logger.log(Level.WARNING, "Archive request with invalid sequence number: " + message.messageBody);
+                    return;
+                }
+            } else if (!"latest".equals(message.messageBody)) { // messages since time x
+                try {
+                    archive = hub.getMessageArchiveSince(Long.parseLong(message.messageBody));
+                } catch (NumberFormatException nfe){
+                    Logger.log(Level.WARNING, "Archive request with invalid time: " + message.messageBody);
+                    return;
+                }
+            } else { // messages of age ARCHIVE_INTERVAL or younger
+                archive = hub.getMessageArchive(ARCHIVE_INTERVAL);
+            }
+            // already ARCHIVEDMSG copies, in one write with the ACK of the request, which tells
+            // the client that it has everything (older clients ignore it)
+            List<Message> reply = new ArrayList<Message>(archive.size() + 1);
+            reply.addAll(archive);
+            reply.add(Message.createAckMessage(message));
+            Metrics.archivedMessagesSent.addAndGet(archive.size());
+            sendMessages (reply);
+
+        } else  if (MessageType.WHOSONLINE == message.messageType){
+            if (Presence.SUBSCRIBE.equals(message.messageBody)){
+                Hub.presence.subscribe(this);
+            } else {
+                sendMessage (new Message(userName, MessageType.WHOSONLINE, Hub.presence.list()));
+            }
+
+        } else  if (MessageType.SHUTDOWN == message.messageType){
+            Logger.log (Level.FINE, userName + " sends Shutdown");
+            shutdown();
+        }
+
+        if (backMsg != null){
+            sendMessage (backMsg);
+        }
+    }
+
+    /**
+     * Something has arrived from the client: after the handshake, it is alive
+     * for another two heartbeat intervals. Cheap enough for every read.
+     */
+    void alive (){
+        if (established) liveness.rearm(Wheel.timingWheel.now() + heartbeatInterval * 2L);
+    }
+
+    // on the timing wheel's thread
+    private void livenessExpired (){
+        if (!established) {
+            Logger.log(Level.WARNING, "Handshake not finished in time: " + this);
+            Metrics.handshakeFailed(Metrics.HANDSHAKE_TIMEOUT);
+        } else {
+            Logger.log (Level.WARNING, "Client " + userName +
+                    " has not sent anything within " + heartbeatInterval*2 + "ms");
+        }
+        shutdown();
+    }
+
+    /**
+     * Queue a broadcast from the Hub; never blocks, so one slow client doesn't
+     * hold up the others.
+     */
+    void broadcast (Message msg){
+        if (userName.equals(msg.userName)){
+            // don't copy myself
+            return;
+        }
+        if (Logger.isLoggable(Level.FINER)) Logger.log(Level.FINER, "Schreibe an '%s': %s", userName, msg.messageBody);
+        if (!queue(msg)){
+            disconnectSlowClient();
+        }
+    }
+
+    /** Add a message to {@link #outbound}; false if the queue is full. */
+    boolean queue (Message msg){
+        if (!outbound.offer(msg)) return false;
+        broadcastQueued();
+        return true;
+    }
+
+    /**
+     * Close a connection whose outbound queue is full. Called while broadcasting,
+     * so it only stops the queue; the connection is closed on the timing wheel's
+     * thread, where closing streams that may still flush holds up nobody.
+     */
+    void disconnectSlowClient (){
+        Logger.log(Level.WARNING, "Outbound queue of " + this + " full (" + outbound.size() + 
+                " messages), disconnecting slow client");
+        outbound.close();
+        Wheel.timingWheel.schedule(Wheel.timingWheel.now(), new Runnable() {
+            public void run (){
+                shutdown();
+            }
+        });
+    }
+
+    @Override
+    public String toString(){
+        return "'"+userName+"'";
+    }
+
+}
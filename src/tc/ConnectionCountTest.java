@@ -0,0 +1,147 @@
+package tc;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+import tc.Message.MessageType;
+
+/**
+ * Side-by-side comparison of the hub modes: opens many idle, handshaken
+ * connections to a hub running in the same JVM and prints the number of
+ * platform threads and the resident set size afterwards. Each mode runs in
+ * its own child JVM so the numbers don't influence each other.
+ *
+ * Call as: java -cp tc.jar tc.ConnectionCountTest [connections] [mode ...]
+ * e.g.     java -cp tc.jar tc.ConnectionCountTest 2000 threads vthreads nio
+ * The open file limit (ulimit -n) must allow two sockets per connection.
+ */
+public class ConnectionCountTest {
+
+    private static final int BASE_PORT = 64400;
+    // long enough that the hub doesn't drop the idle connections while measuring
+    private static final int IDLE_HEARTBEAT = 3600*1000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "-child".equals(args[0])) {
+            runChild(args[1], Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+            return;
+        }
+
+        int connections = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        List<String> modes = new ArrayList<String>();
+        for (int i = 1; i < args.length; i++) modes.add(args[i]);
+        if (modes.isEmpty()) {
+            modes.add(Options.HUB_MODE_THREADS);
+            modes.add(Options.HUB_MODE_VTHREADS);
+            modes.add(Options.HUB_MODE_NIO);
+        }
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        System.out.println(String.format("%-10s %12s %10s %12s", "mode", "connections", "threads", "RSS KiB"));
+        int port = BASE_PORT;
+        for (String mode : modes) {
+            ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    ConnectionCountTest.class.getName(), "-child", mode, String.valueOf(connections),
+                    String.valueOf(port++));
+            pb.redirectErrorStream(true);
+            Process p = pb.start();
+            BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream(), "UTF-8"));
+            String line;
+            String lastLine = null;
+            boolean gotResult = false;
+            while ((line = r.readLine()) != null) {
+                if (line.startsWith("RESULT ")) {
+                    String[] parts = line.split(" ");
+                    System.out.println(String.format("%-10s %12s %10s %12s", mode, parts[1], parts[2], parts[3]));
+                    gotResult = true;
+                } else if (line.trim().length() > 0) {
+                    lastLine = line;
+                }
+            }
+            p.waitFor();
+            if (!gotResult) {
+                System.out.println(String.format("%-10s failed: %s", mode, lastLine));
+            }
+        }
+    }
+
+    private static void runChild(String mode, int connections, int port) throws Exception {
+        Hub.main(new String[]{"-l", "SEVERE", "-p", String.valueOf(port), "-m", mode, "-noc"});
+        Thread.sleep(500);
+
+        List<Socket> sockets = new ArrayList<Socket>();
+        int connected = 0;
+        for (int i = 0; i < connections; i++) {
+            try {
+                Socket s = new Socket("localhost", port);
+                sockets.add(s);
+                handshake(s, "cct" + i);
+                connected++;
+            } catch (IOException ioe) {
+                System.err.println("Connection " + i + " failed: " + ioe);
+                break;
+            }
+        }
+
+        Thread.sleep(2000);
+        System.gc();
+        Thread.sleep(500);
+        System.out.println("RESULT " + connected + " " +
+                ManagementFactory.getThreadMXBean().getThreadCount() + " " + residentSetKiB());
+        System.exit(0);
+    }
+
+    /** The client side of the VERSION/CONNECT/heartbeat handshake, without encryption. */
+    private static void handshake(Socket s, String user) throws IOException {
+        OutputStream os = s.getOutputStream();
+        InputStream is = s.getInputStream();
+        Message[] msgs = new Message[]{
+                new Message(user, MessageType.VERSION, Hub.VERSION),
+                new Message(user, MessageType.CONNECT, user),
+                new Message(user, MessageType.CONNECT, String.valueOf(IDLE_HEARTBEAT))};
+        for (Message msg : msgs) {
+            // one write per message, otherwise Nagle and delayed ACKs slow down the handshake
+            byte[] text = msg.toStructuredString().getBytes("UTF-8");
+            byte[] bytes = new byte[text.length + 1];
+            System.arraycopy(text, 0, bytes, 0, text.length);
+            bytes[text.length] = Options.EOL;
+            os.write(bytes);
+            os.flush();
+            int c;
+            while ((c = is.read()) != -1 && c != Options.EOL) {
+                // skip ACK
+            }
+            if (c == -1) throw new IOException("Hub closed connection during handshake");
+        }
+    }
+
+    /** VmRSS from /proc (Linux), or used heap where that's not available. */
+    private static long residentSetKiB() throws IOException {
+        File status = new File("/proc/self/status");
+        if (status.exists()) {
+            BufferedReader r = new BufferedReader(new FileReader(status));
+            try {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    if (line.startsWith("VmRSS:")) {
+                        return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                    }
+                }
+            } finally {
+                r.close();
+            }
+        }
+        Runtime rt = Runtime.getRuntime();
+        return (rt.totalMemory() - rt.freeMemory()) / 1024;
+    }
+
+}
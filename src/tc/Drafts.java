@@ -0,0 +1,269 @@
+package tc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.logging.Level;
+
+import tc.Message.MessageType;
+
+/**
+ * The client's queue of messages for the hub. Heartbeats, archive requests
+ * and the like are kept in memory. So are user messages, unless there is a
+ * drafts file: then they are appended to that file and read back from it in
+ * order, so there is no limit to what can be written while the hub is
+ * unreachable, the messages don't stay on the heap, and whatever has not
+ * been ACKed when the client ends is sent when it is started again.
+ * <p>
+ * The drafts file is memory-mapped and only ever appended to; it holds
+ * records of
+ * <pre>
+ *   int      length of the rest of the record, 0 after the last record
+ *   byte     {@link #DRAFT} or {@link #ACK}
+ *   ...      DRAFT: structured string of the message, ACK: message id (UTF-8)
+ * </pre>
+ * When the file is opened, the drafts that have an ACK record are skipped,
+ * the others are sent again. Once everything in the file has been sent and
+ * ACKed, writing starts from the beginning again.
+ * <p>
+ * User messages that come back through {@link #retry(Message)} are sent
+ * again before anything new, in the order in which they were first taken,
+ * however they come back (ACK timeouts, a failed write, a reconnect).
+ *
+ * @author ok
+ *
+ */
+class Drafts {
+
+    private static final byte DRAFT = 1;
+    private static final byte ACK = 2;
+    // length and kind
+    private static final int HEADER = 5;
+    private static final int INITIAL_SIZE = 1024 * 1024;
+
+    // messages in memory, user messages only without drafts file
+    private final int capacity;
+    private final File file;
+
+    // all access must be synchronized on this
+    private final Deque<Message> control = new ArrayDeque<Message>();
+    private final Deque<Message> users = new ArrayDeque<Message>();
+    // taken, but not ACKed; to be sent again before anything new, in the order of the first taking
+    private final TreeMap<Long, Message> retries = new TreeMap<Long, Message>();
+    // taken user messages waiting for their ACK -> the order of their first taking
+    private final Map<Message, Long> taken = new IdentityHashMap<Message, Long>();
+    private long takeCount;
+    private boolean closed;
+
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private FileLock lock;
+    private MappedByteBuffer map;
+    // next draft to send, end of the records
+    private int readPos;
+    private int writePos;
+    // drafts in the file without ACK record
+    private int unacked;
+    // ids of drafts ACKed in an earlier run
+    private Set<String> acked = new HashSet<String>();
+
+    /**
+     * @param file the drafts file, null to keep user messages in memory
+     * @throws IOException if the file can't be opened or is used by another client
+     */
+    Drafts (int capacity, File file) throws IOException {
+        this.capacity = capacity;
+        this.file = file;
+        if (file != null) open();
+    }
+
+    /**
+     * Add a message without blocking.
+     * @return false if the queue is full or the drafts file can't be written
+     */
+    synchronized boolean offer (Message msg){
+        if (closed) return false;
+        if (MessageType.USERMSG == msg.messageType && map != null) {
+            try {
+                append(DRAFT, msg.toStructuredString());
+            } catch (IOException ioe) {
+                Logger.log(Level.WARNING, "Could not write to drafts file " + file, ioe);
+                return false;
+            }
+            unacked++;
+        } else {
+            if (control.size() + users.size() >= capacity) return false;
+            if (MessageType.USERMSG == msg.messageType) {
+                users.add(msg);
+            } else {
+                control.add(msg);
+            }
+        }
+        notifyAll();
+        return true;
+    }
+
+    /** A user message that has been taken but could not be sent, or got no ACK; it is next. */
+    synchronized void retry (Message msg){
+        if (closed) return;
+        Long order = taken.remove(msg);
+        retries.put(order != null ? order : ++takeCount, msg);
+        notifyAll();
+    }
+
+    /** The hub has ACKed a user message; it won't be sent again. */
+    synchronized void acked (Message msg){
+        taken.remove(msg);
+        if (closed || map == null || MessageType.USERMSG != msg.messageType) return;
+        try {
+            append(ACK, msg.messageId);
+        } catch (IOException ioe) {
+            Logger.log(Level.WARNING, "Could not write to drafts file " + file, ioe);
+        }
+        unacked--;
+        if (unacked <= 0 && retries.isEmpty()) {
+            // every draft has been sent and ACKed, start over
+            Logger.log(Level.FINEST, "Drafts all ACKed, rewinding " + file);
+            readPos = 0;
+            writePos = 0;
+            unacked = 0;
+            acked.clear();
+            map.putInt(0, 0);
+        }
+    }
+
+    /** Wait for the next message: control messages first, then user messages in order. */
+    synchronized Message take () throws InterruptedException {
+        while (true) {
+            Message msg = poll();
+            if (msg != null) return msg;
+            wait();
+        }
+    }
+
+    private Message poll (){
+        if (!control.isEmpty()) return control.poll();
+        if (!retries.isEmpty()) {
+            // keeps its place, should it come back again
+            Map.Entry<Long, Message> retry = retries.pollFirstEntry();
+            taken.put(retry.getValue(), retry.getKey());
+            return retry.getValue();
+        }
+        Message msg = map != null ? nextDraft() : users.poll();
+        if (msg != null) taken.put(msg, ++takeCount);
+        return msg;
+    }
+
+    /** Flush the drafts file and release it. */
+    synchronized void close (){
+        if (closed) return;
+        closed = true;
+        if (map == null) return;
+        try {
+            map.force();
+            lock.release();
+            raf.close();
+        } catch (IOException ioe) {
+            Logger.log(Level.WARNING, "Could not close drafts file " + file, ioe);
+        }
+    }
+
+    private void open () throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException ofle) {
+            lock = null;
+        }
+        if (lock == null) {
+            raf.close();
+            throw new IOException("Drafts file " + file + " is used by another client");
+        }
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_SIZE, channel.size()));
+
+        Set<String> drafts = new HashSet<String>();
+        int pos = 0;
+        while (pos + HEADER <= map.capacity()) {
+            int length = map.getInt(pos);
+            if (length <= 0 || pos + 4 + length > map.capacity()) break;
+            String s = string(pos + HEADER, length - 1);
+            if (map.get(pos + 4) == ACK) {
+                acked.add(s);
+            } else {
+                try {
+                    drafts.add(new Message(s).messageId);
+                } catch (Message.MessageException me) {
+                    Logger.log(Level.WARNING, "Skipping broken draft: " + s);
+                }
+            }
+            pos += 4 + length;
+        }
+        writePos = pos;
+        if (writePos + 4 > map.capacity()) grow(writePos + 4);
+        map.putInt(writePos, 0);
+        drafts.removeAll(acked);
+        unacked = drafts.size();
+        Logger.log(Level.CONFIG, "Drafts file " + file + ", " + unacked + " unsent message(s)");
+    }
+
+    // the next user message from the file that is still to be sent, or null
+    private Message nextDraft (){
+        while (readPos < writePos) {
+            int length = map.getInt(readPos);
+            byte kind = map.get(readPos + 4);
+            String s = string(readPos + HEADER, length - 1);
+            readPos += 4 + length;
+            if (kind != DRAFT) continue;
+            try {
+                Message msg = new Message(s);
+                if (acked.contains(msg.messageId)) continue;
+                return msg;
+            } catch (Message.MessageException me) {
+                // logged in open()
+            }
+        }
+        return null;
+    }
+
+    private void append (byte kind, String s) throws IOException {
+        byte[] bytes = s.getBytes(Framing.UTF8);
+        int end = writePos + HEADER + bytes.length;
+        if (end + 4 > map.capacity()) grow((long) end + 4);
+        map.position(writePos + HEADER);
+        map.put(bytes);
+        map.putInt(end, 0);
+        map.put(writePos + 4, kind);
+        // last, so that a record is only there once it is complete
+        map.putInt(writePos, 1 + bytes.length);
+        writePos = end;
+    }
+
+    private void grow (long needed) throws IOException {
+        long size = Math.max(needed, map.capacity() * 2L);
+        if (size > Integer.MAX_VALUE) throw new IOException("Drafts file too large");
+        map = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        Logger.log(Level.FINE, "Drafts file " + file + " grown to " + size + " bytes");
+    }
+
+    private String string (int offset, int length){
+        byte[] bytes = new byte[length];
+        ByteBuffer src = map.duplicate();
+        src.position(offset);
+        src.get(bytes);
+        return new String(bytes, Framing.UTF8);
+    }
+
+}
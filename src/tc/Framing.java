@@ -0,0 +1,353 @@
+package tc;
+
+import static tc.Message.MessageType;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.List;
+
+/**
+ * How {@link Message}s are cut into frames on the wire. The protocol version
+ * sent in the VERSION handshake selects the framing for everything after the
+ * VERSION ACK (the VERSION message and its ACK are always text):
+ * <ul>
+ * <li>{@link Hub#VERSION} "tc0.3": {@link #TEXT}, the structured string in UTF-8, terminated by {@link Options#EOL}
+ * <li>{@link Hub#VERSION_BINARY} "tc0.4": {@link #BINARY}, length prefixed frames with typed fields
+ * </ul>
+ * A binary frame is
+ * <pre>
+ *   varint   length of the rest of the frame
+ *   varint   time stamp
+ *   byte     ordinal of the {@link MessageType}
+ *   varint   length, UTF-8 user name
+ *   varint   length, UTF-8 message id
+ *   varint   length, UTF-8 message body
+ *   varint   optional: the hub's sequence number ({@link Message#seq}), if not 0 or a trace follows
+ *   varint   optional: number of trace stamps ({@link Message#trace}), if traced
+ *   varint   ... the trace stamps, microseconds since the epoch, 0 if not stamped (see {@link Trace})
+ *   ...      optional trailing fields, skipped by readers that don't know them
+ * </pre>
+ * Varints are unsigned, 7 bits per byte, least significant group first.
+ * The MessageType ordinals are part of the protocol: new types must be added
+ * at the end of the enum.
+ *
+ * @author ok
+ *
+ */
+abstract class Framing {
+
+    static final Framing TEXT = new Text(0);
+    static final Framing BINARY = new Binary(1);
+    // number of framings, for per framing caches
+    static final int COUNT = 2;
+
+    // larger frames are taken as a corrupt stream
+    static final int MAX_FRAME_LENGTH = 16 * 1024 * 1024;
+
+    static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final MessageType[] TYPES = MessageType.values();
+
+    final int index;
+
+    private Framing (int index){
+        this.index = index;
+    }
+
+    /** The framing of a protocol version (with or without capabilities), or null if the version is unknown. */
+    static Framing forVersion (String version){
+        version = Hub.protocolVersion(version);
+        if (Hub.VERSION.equals(version)) return TEXT;
+        if (Hub.VERSION_BINARY.equals(version)) return BINARY;
+        return null;
+    }
+
+    /**
+     * The complete frame of a message, ready to be encrypted and written.
+     * Encoded only once per message: a broadcast is handed to every connection
+     * as the same Message, so they all get the same array, which must not be
+     * modified.
+     */
+    final byte[] encode (Message msg){
+        return msg.frame(this);
+    }
+
+    /** The frames of several messages back to back, to be written at once. */
+    final byte[] encode (List<Message> msgs){
+        byte[][] frames = new byte[msgs.size()][];
+        int length = 0;
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = encode(msgs.get(i));
+            length += frames[i].length;
+        }
+        byte[] bytes = new byte[length];
+        int offset = 0;
+        for (byte[] frame : frames) {
+            System.arraycopy(frame, 0, bytes, offset, frame.length);
+            offset += frame.length;
+        }
+        return bytes;
+    }
+
+    /** Encode without looking at the message's cache; see {@link #encode(Message)}. */
+    abstract byte[] encodeFrame (Message msg);
+
+    /**
+     * Read the next frame from a stream.
+     * @return the message, or null at the end of the stream
+     * @throws IOException if the stream fails or the framing is broken
+     * @throws Message.MessageException if this frame could not be parsed; the next one can be read
+     */
+    abstract Message read (InputStream in) throws IOException, Message.MessageException;
+
+    /**
+     * Decode the next frame from a buffer (in read mode). On success the
+     * position is moved past the frame; if the buffer doesn't hold a complete
+     * frame yet, null is returned and the position is left unchanged.
+     * @throws IOException if the framing is broken and the stream can't be resynchronised
+     * @throws Message.MessageException if this frame could not be parsed; it has been skipped
+     */
+    abstract Message decode (ByteBuffer buf) throws IOException, Message.MessageException;
+
+
+    /** "user|TYPE|time|id|body" followed by EOL, as spoken since tc0.1. */
+    private static class Text extends Framing {
+
+        Text (int index){
+            super(index);
+        }
+
+        @Override
+        byte[] encodeFrame (Message msg){
+            byte[] text = msg.toStructuredString().getBytes(UTF8);
+            byte[] bytes = new byte[text.length + 1];
+            System.arraycopy(text, 0, bytes, 0, text.length);
+            bytes[text.length] = Options.EOL;
+            return bytes;
+        }
+
+        @Override
+        Message read (InputStream in) throws IOException, Message.MessageException {
+            byte[] frame = new byte[256];
+            while (true) {
+                int length = 0;
+                int c;
+                while ((c = in.read()) != -1 && c != Options.EOL){
+                    if (length == frame.length) {
+                        if (length >= MAX_FRAME_LENGTH) throw new IOException("Frame too long");
+                        byte[] bigger = new byte[frame.length * 2];
+                        System.arraycopy(frame, 0, bigger, 0, length);
+                        frame = bigger;
+                    }
+                    frame[length++] = (byte) c;
+                }
+                if (c == -1) return null;
+                // skip empty frames
+                if (length > 1) return new Message(new String(frame, 0, length, UTF8));
+            }
+        }
+
+        @Override
+        Message decode (ByteBuffer buf) throws IOException, Message.MessageException {
+            while (true) {
+                int start = buf.position();
+                int end = start;
+                while (end < buf.limit() && buf.get(end) != Options.EOL) end++;
+                if (end == buf.limit()) {
+                    if (end - start > MAX_FRAME_LENGTH) throw new IOException("Frame too long");
+                    return null;
+                }
+                buf.position(end + 1);
+                // skip empty frames
+                if (end - start > 1) return new Message(string(buf, start, end - start));
+            }
+        }
+    }
+
+    /** Length prefixed frames with typed fields, see the class comment. */
+    private static class Binary extends Framing {
+
+        Binary (int index){
+            super(index);
+        }
+
+        @Override
+        byte[] encodeFrame (Message msg){
+            byte[] user = bytes(msg.userName);
+            byte[] id = bytes(msg.messageId);
+            byte[] body = bytes(msg.messageBody);
+            int length = varintSize(msg.timeStamp) + 1 +
+                    varintSize(user.length) + user.length +
+                    varintSize(id.length) + id.length +
+                    varintSize(body.length) + body.length;
+            long[] trace = msg.trace;
+            if (trace != null) {
+                length += varintSize(msg.seq) + varintSize(trace.length);
+                for (long stamp : trace) length += varintSize(stamp);
+            } else if (msg.seq != 0) {
+                length += varintSize(msg.seq);
+            }
+            ByteBuffer buf = ByteBuffer.allocate(varintSize(length) + length);
+            putVarint(buf, length);
+            putVarint(buf, msg.timeStamp);
+            buf.put((byte) msg.messageType.ordinal());
+            putVarint(buf, user.length);
+            buf.put(user);
+            putVarint(buf, id.length);
+            buf.put(id);
+            putVarint(buf, body.length);
+            buf.put(body);
+            if (trace != null) {
+                putVarint(buf, msg.seq);
+                putVarint(buf, trace.length);
+                for (long stamp : trace) putVarint(buf, stamp);
+            } else if (msg.seq != 0) {
+                putVarint(buf, msg.seq);
+            }
+            return buf.array();
+        }
+
+        @Override
+        Message read (InputStream in) throws IOException, Message.MessageException {
+            int c = in.read();
+            if (c == -1) return null;
+            long length = c & 0x7F;
+            int shift = 7;
+            while ((c & 0x80) != 0) {
+                c = in.read();
+                if (c == -1) throw new EOFException("End of stream in frame length");
+                if (shift > 28) throw new IOException("Corrupt frame length");
+                length |= (long) (c & 0x7F) << shift;
+                shift += 7;
+            }
+            if (length > MAX_FRAME_LENGTH) throw new IOException("Frame too long: " + length);
+            byte[] frame = new byte[(int) length];
+            int n = 0;
+            while (n < frame.length) {
+                int r = in.read(frame, n, frame.length - n);
+                if (r == -1) throw new EOFException("End of stream in frame");
+                n += r;
+            }
+            return parse(ByteBuffer.wrap(frame), frame.length);
+        }
+
+        @Override
+        Message decode (ByteBuffer buf) throws IOException, Message.MessageException {
+            int start = buf.position();
+            long length = 0;
+            int shift = 0;
+            while (true) {
+                if (!buf.hasRemaining()) {
+                    buf.position(start);
+                    return null;
+                }
+                int b = buf.get();
+                length |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) break;
+                shift += 7;
+                if (shift > 28) throw new IOException("Corrupt frame length");
+            }
+            if (length > MAX_FRAME_LENGTH) throw new IOException("Frame too long: " + length);
+            if (buf.remaining() < length) {
+                buf.position(start);
+                return null;
+            }
+            int end = buf.position() + (int) length;
+            try {
+                return parse(buf, end);
+            } finally {
+                buf.position(end);
+            }
+        }
+
+        // fields from the current position up to end
+        private static Message parse (ByteBuffer buf, int end) throws Message.MessageException {
+            ByteBuffer frame = buf.duplicate();
+            frame.limit(end);
+            try {
+                long timeStamp = getVarint(frame);
+                if (timeStamp < 0) throw new Message.MessageException("Negative timestamp: " + timeStamp);
+                int type = frame.get() & 0xFF;
+                if (type >= TYPES.length) throw new Message.MessageException("Unknown message type: " + type);
+                String userName = getString(frame);
+                String messageId = getString(frame);
+                String messageBody = getString(frame);
+                Message msg = new Message(userName, TYPES[type], timeStamp, messageBody, messageId);
+                if (frame.hasRemaining()) msg.seq = getVarint(frame);
+                if (frame.hasRemaining()) msg.trace = getTrace(frame);
+                return msg;
+            } catch (BufferUnderflowException bue) {
+                throw new Message.MessageException("Truncated frame", bue);
+            }
+        }
+
+        // stamps this version doesn't know are skipped
+        private static long[] getTrace (ByteBuffer frame) throws Message.MessageException {
+            long count = getVarint(frame);
+            // a ten byte varint is negative
+            if (count < 0) throw new Message.MessageException("Negative trace stamp count: " + count);
+            if (count > frame.remaining()) throw new Message.MessageException("More trace stamps than frame: " + count);
+            long[] trace = new long[Trace.STAMPS];
+            for (int i = 0; i < count; i++) {
+                long stamp = getVarint(frame);
+                if (i < trace.length) trace[i] = stamp;
+            }
+            return trace;
+        }
+
+        private static String getString (ByteBuffer frame) throws Message.MessageException {
+            long length = getVarint(frame);
+            // a ten byte varint is negative
+            if (length < 0) throw new Message.MessageException("Negative field length: " + length);
+            if (length > frame.remaining()) throw new Message.MessageException("Field longer than frame: " + length);
+            String s = string(frame, frame.position(), (int) length);
+            frame.position(frame.position() + (int) length);
+            return s;
+        }
+
+        private static byte[] bytes (String s){
+            return s == null ? new byte[0] : s.getBytes(UTF8);
+        }
+    }
+
+    static int varintSize (long value){
+        int size = 1;
+        while ((value >>>= 7) != 0) size++;
+        return size;
+    }
+
+    static void putVarint (ByteBuffer buf, long value){
+        while ((value & ~0x7FL) != 0) {
+            buf.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    static long getVarint (ByteBuffer buf) throws Message.MessageException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = buf.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new Message.MessageException("Varint too long");
+    }
+
+    // decode UTF-8 straight from the buffer's array where there is one
+    private static String string (ByteBuffer buf, int offset, int length){
+        if (buf.hasArray()) {
+            return new String(buf.array(), buf.arrayOffset() + offset, length, UTF8);
+        }
+        byte[] bytes = new byte[length];
+        ByteBuffer src = buf.duplicate();
+        src.position(offset);
+        src.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+}
@@ -0,0 +1,274 @@
+package tc;
+
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES/GCM encryption of one direction of a connection, the transport
+ * encryption of "-e gcm" (instead of the RC4 streams of "-e rc4"). The client
+ * asks for it in the VERSION handshake with the capability "gcm=&lt;nonce&gt;",
+ * a fresh random nonce in Base64; the hub answers with its own fresh nonce in
+ * the body of the ACK, "ACK;gcm=&lt;nonce&gt;". The VERSION message and its ACK
+ * are plain text; everything after the ACK is sent in records of
+ * <pre>
+ *   int      length of the rest of the record (big endian)
+ *   ...      ciphertext and 16 byte tag
+ * </pre>
+ * Every record is one write (a frame, or several frames written at once),
+ * encrypted with one doFinal: AES/GCM runs on the CPU's AES instructions, and
+ * a record that has been tampered with fails as a whole.
+ * <p>
+ * The keys of a connection are HMAC-SHA256(secret key, "tc gcm" + client
+ * nonce + hub nonce): the first 16 bytes for client to hub, the last 16 for
+ * hub to client. The 12 byte GCM nonce of a record is its number in that
+ * direction, so it is never used twice with a key. Both sides bring a nonce:
+ * a recorded handshake played back to the hub gets new keys, so the hub
+ * neither encrypts under a key it has used before nor accepts the recorded
+ * records.
+ *
+ * @author ok
+ *
+ */
+final class GcmTransport {
+
+    static final int NONCE_LENGTH = 16;
+    private static final int TAG_LENGTH = 16;
+    private static final int HEADER = 4;
+    // larger records are taken as a corrupt stream
+    static final int MAX_RECORD_LENGTH = Framing.MAX_FRAME_LENGTH + TAG_LENGTH;
+    private static final byte[] LABEL = "tc gcm".getBytes(Framing.UTF8);
+
+    private final Cipher cipher;
+    private final SecretKeySpec key;
+    private final int mode;
+    private final byte[] iv = new byte[12];
+    private long records;
+
+    private GcmTransport (byte[] keyBytes, int mode) throws GeneralSecurityException {
+        this.key = new SecretKeySpec(keyBytes, "AES");
+        this.mode = mode;
+        this.cipher = Cipher.getInstance("AES/GCM/NoPadding");
+    }
+
+    /** A new random nonce for the VERSION capability or its ACK. */
+    static String newNonce (){
+        byte[] nonce = new byte[NONCE_LENGTH];
+        new SecureRandom().nextBytes(nonce);
+        return Base64.encode(nonce);
+    }
+
+    /** The ciphers of a client: {send, receive}. */
+    static GcmTransport[] forClient (byte[] secretKey, String clientNonce, String hubNonce) throws GeneralSecurityException {
+        byte[] keys = deriveKeys(secretKey, clientNonce, hubNonce);
+        return new GcmTransport[]{
+                new GcmTransport(Arrays.copyOfRange(keys, 0, 16), Cipher.ENCRYPT_MODE),
+                new GcmTransport(Arrays.copyOfRange(keys, 16, 32), Cipher.DECRYPT_MODE)};
+    }
+
+    /** The ciphers of the hub's side of a connection: {send, receive}. */
+    static GcmTransport[] forHub (byte[] secretKey, String clientNonce, String hubNonce) throws GeneralSecurityException {
+        byte[] keys = deriveKeys(secretKey, clientNonce, hubNonce);
+        return new GcmTransport[]{
+                new GcmTransport(Arrays.copyOfRange(keys, 16, 32), Cipher.ENCRYPT_MODE),
+                new GcmTransport(Arrays.copyOfRange(keys, 0, 16), Cipher.DECRYPT_MODE)};
+    }
+
+    /** The body of the hub's ACK of a VERSION asking for gcm. */
+    static String ackBody (String hubNonce){
+        return "ACK" + Hub.CAPABILITY_SEPARATOR + Hub.CAPABILITY_GCM + "=" + hubNonce;
+    }
+
+    private static byte[] deriveKeys (byte[] secretKey, String clientNonce, String hubNonce) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(secretKey, "HmacSHA256"));
+        mac.update(LABEL);
+        mac.update(nonceBytes(clientNonce));
+        return mac.doFinal(nonceBytes(hubNonce));
+    }
+
+    private static byte[] nonceBytes (String nonce) throws GeneralSecurityException {
+        byte[] nonceBytes;
+        try {
+            nonceBytes = Base64.decode(nonce);
+        } catch (RuntimeException re) {
+            throw new GeneralSecurityException("Broken nonce: " + nonce);
+        }
+        if (nonceBytes.length != NONCE_LENGTH) throw new GeneralSecurityException("Broken nonce: " + nonce);
+        return nonceBytes;
+    }
+
+    // the next record's nonce
+    private void init () throws GeneralSecurityException {
+        long n = records++;
+        for (int i = 0; i < 8; i++) iv[4 + i] = (byte) (n >>> (56 - 8 * i));
+        cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, iv));
+    }
+
+    /** Encrypt bytes into a complete record, header included. */
+    byte[] seal (byte[] plain, int offset, int length) throws IOException {
+        try {
+            init();
+            ByteBuffer record = ByteBuffer.allocate(HEADER + cipher.getOutputSize(length));
+            record.position(HEADER);
+            int n = cipher.doFinal(ByteBuffer.wrap(plain, offset, length), record);
+            record.putInt(0, n);
+            return record.array();
+        } catch (GeneralSecurityException gse) {
+            throw new IOException("Encryption failed: " + gse);
+        }
+    }
+
+    byte[] seal (byte[] plain) throws IOException {
+        return seal(plain, 0, plain.length);
+    }
+
+    /** The length of a sealed record, from its header. */
+    static int recordLength (int header) throws IOException {
+        if (header < TAG_LENGTH || header > MAX_RECORD_LENGTH) throw new IOException("Corrupt record length: " + header);
+        return header;
+    }
+
+    /** Plain text bytes of a sealed record. */
+    int openedSize (int recordLength){
+        return recordLength - TAG_LENGTH;
+    }
+
+    /**
+     * Decrypt a record (without header) from in, position to limit, into out.
+     * @throws IOException if the record has been tampered with or is out of order
+     */
+    void open (ByteBuffer in, ByteBuffer out) throws IOException {
+        try {
+            init();
+            cipher.doFinal(in, out);
+        } catch (GeneralSecurityException gse) {
+            throw new IOException("Decryption failed: " + gse);
+        }
+    }
+
+
+    /** Collects what is written; every flush() is sent as one record. */
+    static class SealingOutputStream extends FilterOutputStream {
+        private final GcmTransport transport;
+        private byte[] buf = new byte[8192];
+        private int count;
+
+        SealingOutputStream (OutputStream out, GcmTransport transport){
+            super(out);
+            this.transport = transport;
+        }
+
+        @Override
+        public void write (int b) throws IOException {
+            ensure(1);
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public void write (byte[] b, int off, int len) throws IOException {
+            ensure(len);
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        private void ensure (int len) throws IOException {
+            if (count + len > Framing.MAX_FRAME_LENGTH) throw new IOException("Record too long");
+            if (count + len > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, count + len));
+        }
+
+        @Override
+        public void flush () throws IOException {
+            if (count > 0) {
+                out.write(transport.seal(buf, 0, count));
+                count = 0;
+            }
+            out.flush();
+        }
+    }
+
+    /**
+     * Reads and decrypts one record at a time. A read that times out in the
+     * middle of a record can be repeated, the part read so far is kept.
+     */
+    static class OpeningInputStream extends InputStream {
+        private final InputStream in;
+        private final GcmTransport transport;
+        private final byte[] header = new byte[HEADER];
+        private int headerRead;
+        private byte[] record;
+        private int recordRead;
+        private ByteBuffer plain = ByteBuffer.allocate(0);
+
+        OpeningInputStream (InputStream in, GcmTransport transport){
+            this.in = in;
+            this.transport = transport;
+        }
+
+        @Override
+        public int read () throws IOException {
+            if (!fill()) return -1;
+            return plain.get() & 0xFF;
+        }
+
+        @Override
+        public int read (byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!fill()) return -1;
+            int n = Math.min(len, plain.remaining());
+            plain.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available () throws IOException {
+            return plain.remaining();
+        }
+
+        @Override
+        public void close () throws IOException {
+            in.close();
+        }
+
+        // false at the end of the stream
+        private boolean fill () throws IOException {
+            while (!plain.hasRemaining()) {
+                while (headerRead < HEADER) {
+                    int n = in.read(header, headerRead, HEADER - headerRead);
+                    if (n < 0) {
+                        if (headerRead == 0) return false;
+                        throw new EOFException("End of stream in record header");
+                    }
+                    headerRead += n;
+                }
+                if (record == null) {
+                    record = new byte[recordLength(ByteBuffer.wrap(header).getInt())];
+                    recordRead = 0;
+                }
+                while (recordRead < record.length) {
+                    int n = in.read(record, recordRead, record.length - recordRead);
+                    if (n < 0) throw new EOFException("End of stream in record");
+                    recordRead += n;
+                }
+                plain = ByteBuffer.allocate(transport.openedSize(record.length));
+                transport.open(ByteBuffer.wrap(record), plain);
+                plain.flip();
+                headerRead = 0;
+                record = null;
+            }
+            return true;
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+package tc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative long values (e.g. latencies in
+ * microseconds). Values are counted in buckets of a power of two split into
+ * {@value #SUB_BUCKETS} linear steps, so percentiles are accurate to about
+ * 25%, which is plenty to see which hop is slow. Recording never allocates.
+ *
+ * @author ok
+ *
+ */
+final class Histogram {
+
+    private static final int SUB_BUCKETS = 4;
+    private static final int SUB_BITS = 2;
+
+    private final String name;
+    private final String unit;
+    private final AtomicLongArray buckets = new AtomicLongArray(64 * SUB_BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    Histogram (String name, String unit){
+        this.name = name;
+        this.unit = unit;
+    }
+
+    void record (long value){
+        if (value < 0) value = 0;
+        buckets.incrementAndGet(bucket(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long m;
+        while (value > (m = max.get())) {
+            if (max.compareAndSet(m, value)) break;
+        }
+    }
+
+    long count (){
+        return count.get();
+    }
+
+    long sum (){
+        return sum.get();
+    }
+
+    long max (){
+        return max.get();
+    }
+
+    double mean (){
+        long n = count.get();
+        return n == 0 ? 0.0 : (double) sum.get() / n;
+    }
+
+    /**
+     * Upper bound of the bucket that holds the given percentile.
+     * @param percentile 0 .. 100
+     */
+    long percentile (double percentile){
+        long n = count.get();
+        if (n == 0) return 0;
+        long rank = (long) Math.ceil(n * percentile / 100.0);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for (int i = 0; i < buckets.length(); i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) return Math.min(upperBound(i), max.get());
+        }
+        return max.get();
+    }
+
+    String getName (){
+        return name;
+    }
+
+    String getUnit (){
+        return unit;
+    }
+
+    private static int bucket (long value){
+        if (value < SUB_BUCKETS) return (int) value;
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exp - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (exp - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long upperBound (int bucket){
+        if (bucket < SUB_BUCKETS) return bucket;
+        int exp = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + sub + 1) << (exp - SUB_BITS)) - 1;
+    }
+
+    @Override
+    public String toString (){
+        return String.format("%s: n=%d mean=%.1f p50=%d p90=%d p99=%d max=%d %s", name, count(), mean(),
+                percentile(50), percentile(90), percentile(99), max(), unit);
+    }
+
+}
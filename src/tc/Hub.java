@@ -4,20 +4,22 @@ package tc;
 import static tc.Message.MessageType;
 
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
 import tc.Message.MessageException;
@@ -25,15 +27,25 @@ import tc.Message.MessageException;
 /**
  * The central server process that handles connected clients, owns the server
  * socket and delegates incoming connections to {@link Client}s.
- * Data flowing in and out uses the Observer/Observable pattern in both directions.
+ * Incoming messages reach the Hub as the Observer of the connections; it
+ * broadcasts them to the connections in {@link #clients}.
  * @author ok
  * 
  */
-public class Hub extends Observable implements Observer {
+public class Hub implements Observer {
 
 
     // TODO: for MSG_TYPE_TYPING, increase Version
     static final String VERSION = "tc0.3";
+    // same messages as VERSION, but in binary frames (see Framing)
+    static final String VERSION_BINARY = "tc0.4";
+    // a VERSION body may ask for capabilities after the version: "tc0.4;deflate"; hubs that 
+    // don't know the version string reject it, and the client asks again without
+    static final char CAPABILITY_SEPARATOR = ';';
+    // everything after the VERSION ACK is deflate compressed, both ways, with sync flushes
+    static final String CAPABILITY_DEFLATE = "deflate";
+    // "gcm=<nonce>": everything after the VERSION ACK is encrypted in GcmTransport records
+    static final String CAPABILITY_GCM = "gcm";
     //private static final DateFormat dateFormat = new SimpleDateFormat("HH:mm:ss.S z");
     private static final ThreadLocal<DateFormat> DATE_FORMAT =
         new ThreadLocal<DateFormat>() {
@@ -54,14 +66,38 @@ public class Hub extends Observable implements Observer {
 
     private static Hub hub;
     private static Options options;
-    private static List<Message> messageArchive = Collections.synchronizedList(
-            new ArrayList<Message>());
     private static final int MAX_MSG_CACHE_SIZE = 400;
+    private static MessageArchive messageArchive = new MessageArchive(MAX_MSG_CACHE_SIZE);
+    // sequence numbers of archived messages; starting from the time in microseconds, they also grow 
+    // across restarts of the hub, and a number from before the start is recognisably old
+    static final long FIRST_SEQ = System.currentTimeMillis() * 1000;
+    private static final AtomicLong lastSeq = new AtomicLong(FIRST_SEQ);
+    // held while a message gets its sequence number and goes into the archive, the journal and
+    // the outbound queues, so they all have the messages in the same order
+    private static final Object sequenceLock = new Object();
+    // user name -> ids of the user's latest messages, to recognise a message that a client sends
+    // again because the ACK got lost; both LRU, guarded by sequenceLock
+    private static final int MAX_RECENT_USERS = 1024;
+    private static final int MAX_RECENT_IDS = 64;
+    private static final Map<String, Map<String, Object>> recentIds =
+        new LinkedHashMap<String, Map<String, Object>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry (Map.Entry<String, Map<String, Object>> eldest){
+                return size() > MAX_RECENT_USERS;
+            }
+        };
 
-    private static BufferedWriter journalWriter;
+    private static Journal journal;
 
-    static List<Client> clients = Collections.synchronizedList(
-            new ArrayList<Client>());
+    // user name -> connection, from the claim of the name in the handshake until the connection
+    // is closed; concurrent, so claims, removals, broadcasts and WHOSONLINE don't wait for each other
+    static final ConcurrentMap<String, Connection> clients = new ConcurrentHashMap<String, Connection>();
+    // the established ones, for WHOSONLINE
+    static final Presence presence = new Presence();
+
+    // Thread.Builder.unstarted(Runnable) and the builder from Thread.ofVirtual(), if the JVM has virtual threads
+    private static Method virtualThreadUnstarted;
+    private static Object virtualThreadBuilder;
 
     
     public Hub() {
@@ -81,12 +117,14 @@ public class Hub extends Observable implements Observer {
                     } catch (MessageException me) {
                         Logger.log(Level.WARNING, "Could not parse as message: "+s);
                     }
-                    if (msg != null) addMessageToArchive(msg);
+                    if (msg != null) {
+                        addMessageToArchive(msg);
+                        rememberId(msg);
+                    }
                 }
             } catch (IOException ioe){
                 Logger.log(Level.WARNING, "Could not open journal file for reading: "+ 
                         options.optJournalFile.getAbsolutePath());
-                journalWriter = null;
             } finally {
                 try {
                     if (journalReader != null) journalReader.close();
@@ -96,20 +134,25 @@ public class Hub extends Observable implements Observer {
             }
             
             try {
-                journalWriter = new BufferedWriter(new FileWriter(options.optJournalFile, true /*append*/));
-                journalWriter.write("==========  Opened journal file " + 
+                journal = new Journal(options.optJournalFile, options.optJournalDurability,
+                        "==========  Opened journal file " + 
                         DATE_TIME_FORMAT.get().format(System.currentTimeMillis()) + " ==========\n");
-                journalWriter.flush();
             } catch (IOException ioe){
                 Logger.log(Level.WARNING, "Could not open journal file for writing: " + 
                         options.optJournalFile.getAbsolutePath());
-                journalWriter = null;
+                journal = null;
             }
         }
 
     }
 
-    static class Server extends Thread {
+    /** Accepts client connections until shut down. */
+    abstract static class Listener extends Thread {
+        abstract void shutdown();
+    }
+
+    /** Serves every connection with its own {@link Client} thread. */
+    static class Server extends Listener {
         private ServerSocket serverSocket = null;
         private int port;
         private volatile boolean closed = false;
@@ -140,12 +183,10 @@ public class Hub extends Observable implements Observer {
                     if (!closed){
                         Logger.log(Level.FINE, "Listening");
                         clientSocket = serverSocket.accept();
-                        if (!isIpAddressAllowed (clientSocket)){
+                        if (!isIpAddressAllowed (clientSocket.getInetAddress().getHostAddress())){
                             clientSocket.close();
                         } else {
-                            Client client = new Client(clientSocket, hub, options);
-                            clients.add(client);
-                            hub.addObserver(client);
+                            new Client(clientSocket, hub, options);
                         }
                     }
                 } catch (IllegalStateException ise){
@@ -164,21 +205,7 @@ public class Hub extends Observable implements Observer {
             }   
         }
         
-        private boolean isIpAddressAllowed(Socket clientSocket) {
-            if (options.optIpAddresses == null) {
-                return true;
-            } else {
-                String clientAddress = clientSocket.getInetAddress().getHostAddress();
-                for (String prefix : options.optIpAddresses) {
-                    if (clientAddress.startsWith(prefix.trim())) {
-                        return true;
-                    }
-                }
-                Logger.log(Level.WARNING, "Connect from " + clientAddress + " not allowed!");
-                return false;
-            }
-        }
-        
+        @Override
         void shutdown(){
             try {
                 closed = true;
@@ -190,7 +217,86 @@ public class Hub extends Observable implements Observer {
         }
     }
     
+    /**
+     * Create (but don't start) the thread that serves a {@link Client}: a virtual
+     * thread in hub mode "vthreads", a platform thread otherwise.
+     */
+    static Thread newConnectionThread (Runnable runnable, String name){
+        Thread t = null;
+        if (virtualThreadBuilder != null) {
+            try {
+                t = (Thread) virtualThreadUnstarted.invoke(virtualThreadBuilder, runnable);
+            } catch (Exception e) {
+                Logger.log(Level.WARNING, "Could not create virtual thread, using platform thread", e);
+            }
+        }
+        if (t == null) t = new Thread(runnable);
+        t.setName(name);
+        return t;
+    }
+
+    /** Look up virtual thread support by reflection, so the hub still runs on older JVMs. */
+    private static void initVirtualThreads (){
+        try {
+            virtualThreadBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+            virtualThreadUnstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+            Logger.log(Level.INFO, "Serving clients on virtual threads");
+        } catch (Exception e) {
+            virtualThreadBuilder = null;
+            Logger.log(Level.WARNING, "Virtual threads not available in Java " + 
+                    System.getProperty("java.version") + ", using platform threads");
+        }
+    }
+
+    /** The protocol version of a VERSION body, without capabilities. */
+    static String protocolVersion (String versionBody){
+        int i = versionBody.indexOf(CAPABILITY_SEPARATOR);
+        return i < 0 ? versionBody : versionBody.substring(0, i);
+    }
+
+    /** True if the VERSION body asks for the capability. */
+    static boolean hasCapability (String versionBody, String capability){
+        String[] parts = versionBody.split(String.valueOf(CAPABILITY_SEPARATOR));
+        for (int i = 1; i < parts.length; i++) {
+            if (parts[i].equals(capability)) return true;
+        }
+        return false;
+    }
+
+    /** The value of a capability "name=value" in the VERSION body, or null if it isn't asked for. */
+    static String capabilityValue (String versionBody, String capability){
+        String[] parts = versionBody.split(String.valueOf(CAPABILITY_SEPARATOR));
+        for (int i = 1; i < parts.length; i++) {
+            if (parts[i].startsWith(capability + "=")) return parts[i].substring(capability.length() + 1);
+        }
+        return null;
+    }
+
+    static boolean isIpAddressAllowed(String clientAddress) {
+        if (options.optIpAddresses == null) {
+            return true;
+        } else {
+            for (String prefix : options.optIpAddresses) {
+                if (clientAddress.startsWith(prefix.trim())) {
+                    return true;
+                }
+            }
+            Logger.log(Level.WARNING, "Connect from " + clientAddress + " not allowed!");
+            return false;
+        }
+    }
+    
     /** Inform all Clients of new messages.
+     * Numbering, archiving and queueing the message for every connection
+     * happen under one lock, so every connection gets the messages in the
+     * order of their sequence numbers: a client that resumes after the highest
+     * number it has seen misses nothing. Queueing doesn't block, and slow
+     * clients are disconnected on another thread, so the lock is held only
+     * briefly. Connections come and go during a broadcast without waiting
+     * for it; they get the message or not.
+     * A user message with the id of one of the user's latest messages is a
+     * resend after a lost ACK; it has been broadcast already and is dropped,
+     * the connection only ACKs it.
      * @param arg a {@link Message}
      */
     //@Override
@@ -200,99 +306,136 @@ public class Hub extends Observable implements Observer {
         }
         
         Message msg = (Message) arg;
-        Logger.log(Level.FINEST, "update :: " + msg.userName+"@"+msg.messageId+":" + msg.messageBody);
+        if (Logger.isLoggable(Level.FINEST)) Logger.log(Level.FINEST, "update :: %s@%s:%s", msg.userName, msg.messageId, msg.messageBody);
         if (MessageType.USERMSG == msg.messageType || MessageType.ISTYPING == msg.messageType){
-            addMessageToArchive(msg);
-            writeToJournal(msg);
-            setChanged();
-            notifyObservers(arg);
+            synchronized (sequenceLock) {
+                if (MessageType.USERMSG == msg.messageType && !rememberId(msg)) {
+                    Logger.log(Level.FINE, "Resent message %s@%s, not broadcast again", msg.userName, msg.messageId);
+                    Metrics.resentMessages.incrementAndGet();
+                    return;
+                }
+                addMessageToArchive(msg);
+                writeToJournal(msg);
+                msg.hubNanos = System.nanoTime();
+                long fanOutStart = Trace.hub.fanOut(msg);
+                for (Connection c : clients.values()) {
+                    if (c.established) c.broadcast(msg);
+                }
+                Trace.hub.fanOutDone(fanOutStart);
+            }
         }
     }
     
-    private void writeToJournal (Message msg){
-        if (journalWriter == null) return;
-        try {
-            journalWriter.write(msg.toStructuredString()+"\n");
-            journalWriter.flush();
-        } catch (IOException ioe) {
-            Logger.log(Level.WARNING, "Could not write to journal file, closing it.");
-            try {
-                journalWriter.close();
-            } catch (IOException e){
-                // ignore
-            }
-            journalWriter = null;
+    /** Add the id of a user message to the user's latest ones.
+     * @return false if it is among them already
+     */
+    private static boolean rememberId (Message msg){
+        // messages from old journals may have no id
+        if (msg.messageId == null) return true;
+        Map<String, Object> ids = recentIds.get(msg.userName);
+        if (ids == null) {
+            ids = new LinkedHashMap<String, Object>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry (Map.Entry<String, Object> eldest){
+                    return size() > MAX_RECENT_IDS;
+                }
+            };
+            recentIds.put(msg.userName, ids);
         }
+        return ids.put(msg.messageId, Boolean.TRUE) == null;
+    }
+
+    // only queues the message, the Journal writes it on its own thread
+    private void writeToJournal (Message msg){
+        if (journal == null) return;
+        journal.append(msg);
     }
     
-    public void removeClient (Client client){
-        if (clients.contains(client)){
+    /** Claim a user name for a connection in its handshake.
+     * 
+     * @return false if another connection has it already
+     */
+    static boolean claimUserName (String userName, Connection client){
+        return clients.putIfAbsent(userName, client) == null;
+    }
+
+    /** The handshake of a connection is done: it gets broadcasts and is online. */
+    static void established (Connection client){
+        client.established = true;
+        client.alive();
+        presence.joined(client);
+    }
+
+    /** Give up the user name of a connection, if the connection has claimed it. */
+    public void removeClient (Connection client){
+        if (clients.remove(client.userName, client)){
             Logger.log(Level.FINE, "Removing client " + client);
-            clients.remove(client);
+            presence.left(client);
             // TODO: send update message to all remaining clients MSG_TYPE_TYPING=false
             // Message noTypingMsg = new Message(client.userName, MSG_TYPE_TYPING, "false");
             //                     notifyObservers(noTypingMsg);
-
-            deleteObserver(client);
         }
     }
 
     /** Return messages from now backwards with size "window".
+     * The messages are shared with other clients and must not be modified.
      * 
      * @param interval
      * @return
      */
     public List<Message> getMessageArchive (long interval) {
-        List<Message> result = new ArrayList<Message>();
-        
-        Logger.log(Level.FINEST, "getMessageArchive("+DATE_FORMAT.get().format(interval)+")");
-        long now = System.currentTimeMillis();
-        synchronized (messageArchive) {
-            for (Message msg : messageArchive) {
-                if (now - msg.timeStamp  < interval) {
-                    // must clone Message, so that the original doesn't get modified
-                    result.add(Message.createCopy(msg));
-                }
-            }
-        }
-        
-        return result;
+        if (Logger.isLoggable(Level.FINEST)) Logger.log(Level.FINEST, "getMessageArchive("+DATE_FORMAT.get().format(interval)+")");
+        Metrics.archiveRequested("latest");
+        return messageArchive.since(System.currentTimeMillis() - interval);
     }
 
     /** Return messages younger than "since".
+     * The messages are shared with other clients and must not be modified.
      * 
      * @param since
      * @return
      */
     public List<Message> getMessageArchiveSince (long since) {
-        List<Message> result = new ArrayList<Message>();
-
-        Logger.log(Level.FINEST, "getMessageArchiveSince("+DATE_FORMAT.get().format(since)+")");
-        synchronized (messageArchive) {
-            for (Message msg : messageArchive) {
-                if (msg.timeStamp > since) {
-                    Logger.log(Level.FINEST, "Get archived message: " + msg.toStructuredString());
-                    // must clone Message, so that the original doesn't get modified
-                    result.add(Message.createCopy(msg));
-                }
-            }
+        if (Logger.isLoggable(Level.FINEST)) Logger.log(Level.FINEST, "getMessageArchiveSince("+DATE_FORMAT.get().format(since)+")");
+        Metrics.archiveRequested("since");
+        return messageArchive.since(since);
+    }
+
+    /** Return messages after sequence number "seq"; if that is from before
+     * this hub was started, messages younger than "since".
+     * The messages are shared with other clients and must not be modified.
+     * 
+     * @param seq
+     * @param since
+     * @return
+     */
+    public List<Message> getMessageArchiveAfter (long seq, long since) {
+        if (Logger.isLoggable(Level.FINEST)) Logger.log(Level.FINEST, "getMessageArchiveAfter("+seq+", "+DATE_FORMAT.get().format(since)+")");
+        if (seq < FIRST_SEQ) {
+            Metrics.archiveRequested("seq-miss");
+            return messageArchive.since(since);
         }
-        
-        return result;
+        Metrics.archiveRequested("seq");
+        return messageArchive.after(seq);
     }
 
-    /** Add message to message archive.
+    /** Give the message the next sequence number and add it to the message archive.
      * 
      * @param msg
      */
     // final because called from constructor
     public final void addMessageToArchive (Message msg){
-        synchronized (messageArchive) {
-            if (messageArchive.size() > MAX_MSG_CACHE_SIZE - 5) {
-                messageArchive.remove(0);
-            }
-            messageArchive.add(msg);
-        }
+        msg.seq = lastSeq.incrementAndGet();
+        messageArchive.add(msg);
+    }
+
+    static int getMessageArchiveSize (){
+        return messageArchive.size();
+    }
+
+    /** The journal, or null if there is none. */
+    static Journal getJournal (){
+        return journal;
     }
     
     public static void main (String[] args){
@@ -304,14 +447,34 @@ public class Hub extends Observable implements Observer {
         }
         
         hub = new Hub();
+        if (Options.HUB_MODE_VTHREADS.equals(options.optHubMode)){
+            initVirtualThreads();
+        }
 
         if (options.optHost == null){
-            final Server hubThread = new Server(options.optPort);
+            final Listener hubThread;
+            if (Options.HUB_MODE_NIO.equals(options.optHubMode)){
+                hubThread = new NioServer(options.optPort, hub, options);
+            } else {
+                hubThread = new Server(options.optPort);
+            }
             hubThread.start();
+            if (options.optMetricsPort != null){
+                try {
+                    Metrics.start(options.optMetricsPort);
+                } catch (IOException e) {
+                    Logger.log(Level.SEVERE, "Could not serve metrics on port " + options.optMetricsPort + ": " + e.getMessage());
+                }
+            }
 
             Runtime.getRuntime().addShutdownHook(new Thread() {
                 public void run() {
                     hubThread.shutdown();
+                    Metrics.stop();
+                    if (journal != null){
+                        journal.close("===.......  Closed journal file " + 
+                                DATE_TIME_FORMAT.get().format(System.currentTimeMillis()) + " ..........\n");
+                    }
                     try {
                         if (options.optLogfile != null){
                             Logger.closeLogFile();
@@ -320,20 +483,15 @@ public class Hub extends Observable implements Observer {
                         System.err.println("Could not close log file: " + e.getMessage());
                     }
                     Logger.logStd(Level.SEVERE, "messageArchive size : " + messageArchive.size());
-
-                    if (journalWriter != null){
-                        try {
-                            journalWriter.write("===.......  Closed journal file " + 
-                                    DATE_TIME_FORMAT.get().format(System.currentTimeMillis()) + " ..........\n");
-                            journalWriter.flush();
-                        } catch  (IOException e) {
-                            System.err.println("Could not finish journal file: " + e.getMessage());
-                        }
-                        try {
-                            journalWriter.close();
-                        } catch  (IOException e) {
-                            System.err.println("Could not close journal file: " + e.getMessage());
-                        }
+                    Logger.logStd(Level.SEVERE, "outbound queues    : " + OutboundQueue.totalDropped.get() + " dropped, " +
+                            OutboundQueue.totalSpilled.get() + " spilled, " + 
+                            OutboundQueue.totalDisconnects.get() + " slow clients disconnected");
+                    if (journal != null){
+                        Logger.logStd(Level.SEVERE, journal.appendLatency.toString());
+                        Logger.logStd(Level.SEVERE, journal.batchSize.toString());
+                    }
+                    for (Histogram h : Trace.hub.histograms()) {
+                        Logger.logStd(Level.SEVERE, h.toString());
                     }
                 }
             });
@@ -0,0 +1,176 @@
+package tc;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Appends user messages to the journal file on a background thread. Whatever
+ * has been queued while the previous write was in progress is written as one
+ * batch with a single flush (group commit), so a burst of chat messages costs
+ * one write (and, depending on the {@link Durability}, one fsync) instead of
+ * one per message. The broadcasting thread only enqueues.
+ *
+ * @author ok
+ *
+ */
+class Journal {
+
+    enum Durability {
+        /** fsync after every batch: a message is on disk before the next batch is written */
+        FSYNC,
+        /** fsync at most once per {@value Journal#FSYNC_INTERVAL} ms */
+        INTERVAL,
+        /** flush every batch to the operating system, never fsync (like the old journal) */
+        BUFFERED
+    }
+
+    static final long FSYNC_INTERVAL = 1000;
+    private static final int MAX_BATCH = 1000;
+
+    private final File file;
+    private final Durability durability;
+    private final FileOutputStream journalStream;
+    private final BufferedWriter journalWriter;
+    private final BlockingQueue<Entry> queue = new LinkedBlockingQueue<Entry>();
+    private final Appender appender;
+    private volatile boolean closed;
+    private long lastSync = System.currentTimeMillis();
+
+    // from enqueue until written to the operating system (FSYNC: until synced)
+    final Histogram appendLatency = new Histogram("journal append latency", "us");
+    final Histogram batchSize = new Histogram("journal batch size", "messages");
+
+    private static class Entry {
+        final Message msg;
+        final String line;
+        final long queued = System.nanoTime();
+
+        Entry (Message msg, String line){
+            this.msg = msg;
+            this.line = line;
+        }
+    }
+
+    Journal (File file, Durability durability, String openLine) throws IOException {
+        this.file = file;
+        this.durability = durability;
+        journalStream = new FileOutputStream(file, true /*append*/);
+        journalWriter = new BufferedWriter(new OutputStreamWriter(journalStream, "UTF-8"));
+        journalWriter.write(openLine);
+        journalWriter.flush();
+        appender = new Appender();
+        appender.start();
+        Logger.log(Level.CONFIG, "Journal " + file + ", durability " + durability);
+    }
+
+    /** Queue a message for the journal; never blocks. */
+    void append (Message msg){
+        if (closed) return;
+        queue.add(new Entry(msg, null));
+    }
+
+    /** Write what is still queued, then the closing line, and close the file. */
+    void close (String closeLine){
+        if (closed) return;
+        closed = true;
+        queue.add(new Entry(null, closeLine));
+        try {
+            appender.join(5000);
+        } catch (InterruptedException e) {
+            Logger.log(Level.WARNING, "Interrupted while closing journal");
+        }
+    }
+
+    private class Appender extends Thread {
+
+        Appender (){
+            setName("Journal");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run (){
+            List<Entry> batch = new ArrayList<Entry>();
+            boolean unsynced = false;
+            boolean done = false;
+            while (!done) {
+                try {
+                    Entry first;
+                    if (unsynced) {
+                        // INTERVAL: wake up in time for the next fsync
+                        long wait = Math.max(0, lastSync + FSYNC_INTERVAL - System.currentTimeMillis());
+                        first = queue.poll(wait, TimeUnit.MILLISECONDS);
+                    } else {
+                        first = queue.take();
+                    }
+                    if (first != null) {
+                        batch.add(first);
+                        queue.drainTo(batch, MAX_BATCH - 1);
+                    }
+                } catch (InterruptedException ie) {
+                    Logger.log(Level.WARNING, "Journal appender interrupted");
+                    break;
+                }
+                try {
+                    if (!batch.isEmpty()) {
+                        for (Entry e : batch) {
+                            if (e.msg != null) {
+                                journalWriter.write(e.msg.toStructuredString());
+                                journalWriter.write('\n');
+                            } else {
+                                journalWriter.write(e.line);
+                                done = true;
+                            }
+                        }
+                        journalWriter.flush();
+                        unsynced = durability != Durability.BUFFERED;
+                    }
+                    long now = System.currentTimeMillis();
+                    if (unsynced && (durability == Durability.FSYNC || done || now - lastSync >= FSYNC_INTERVAL)) {
+                        journalStream.getChannel().force(false);
+                        lastSync = now;
+                        unsynced = false;
+                    }
+                } catch (IOException ioe) {
+                    Logger.log(Level.WARNING, "Could not write to journal file " + file + ", closing it.", ioe);
+                    closed = true;
+                    done = true;
+                }
+                record(batch);
+                batch.clear();
+            }
+            try {
+                journalWriter.close();
+            } catch (IOException e) {
+                Logger.log(Level.WARNING, "Could not close journal file: " + e.getMessage());
+            }
+            Logger.log(Level.FINE, appendLatency.toString());
+            Logger.log(Level.FINE, batchSize.toString());
+        }
+
+        private void record (List<Entry> batch){
+            long now = System.nanoTime();
+            int messages = 0;
+            for (Entry e : batch) {
+                if (e.msg == null) continue;
+                appendLatency.record((now - e.queued) / 1000);
+                messages++;
+            }
+            if (messages > 0) batchSize.record(messages);
+        }
+    }
+
+    static Durability parseDurability (String s){
+        return Durability.valueOf(s.toUpperCase());
+    }
+
+}
@@ -1,124 +1,297 @@
 package tc;
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
+
+import tc.Message.MessageType;
+
+/**
+ * Headless load generator: many simulated users in one process, each a
+ * {@link TextUI} speaking the full protocol to a Hub (handshake, ACKs,
+ * heartbeats, reconnects with archive requests). Messages are sent at random
+ * (Poisson) intervals with random sizes; every message carries its send time,
+ * so receivers measure the end-to-end latency from send to fan-out receipt.
+ * The ACK round trip is measured by the sender.
+ *
+ * Call as: java -cp tc.jar tc.LoadUI [load options] [TextUI options, e.g. -h -p -noc -w]
+ *   -clients <n>         simulated users (default 50)
+ *   -rate <msgs/s>       user messages per second, all users together (default 10)
+ *   -size <min>-<max>    message body length in characters (default 20-200)
+ *   -churn <seconds>     mean time between dropped connections, 0 for none (default 0)
+ *   -archive <seconds>   mean time between extra archive requests, 0 for none (default 0)
+ *   -duration <seconds>  run time (default 60)
+ *   -report <seconds>    interval of intermediate reports (default 10)
+ *   -hub <mode>          start a Hub (threads|vthreads|nio) in this process first
+ * Every simulated user has a few threads of its own (and a Hub in mode
+ * "threads" two per user), so thousands of users need a raised ulimit -u.
+ *
+ * @author ok
+ *
+ */
 public class LoadUI extends TextUI {
-    
+
     static final Random RANDOM = new Random();
-    
-    // sentences might be accessed by userinputthread and main thread
-    // TODO: better to start userinputthread outwith constructor
-    private volatile List<String> sentences = null;
+
+    private static final String FILLER_TEXT = "Alice was beginning to get very tired of sitting by her sister " +
+        "on the bank, and of having nothing to do: once or twice she had peeped into the book her sister was " +
+        "reading, but it had no pictures or conversations in it, 'and what is the use of a book,' thought Alice " +
+        "'without pictures or conversations?' ";
+
+    // load options
+    private static int clients = 50;
+    private static double rate = 10;
+    private static int minSize = 20;
+    private static int maxSize = 200;
+    private static int churnSeconds = 0;
+    private static int archiveSeconds = 0;
+    private static int durationSeconds = 60;
+    private static int reportSeconds = 10;
+    private static String hubMode;
+
+    private static String filler = FILLER_TEXT;
+
+    // measurements of all simulated users
+    static final Histogram latency = new Histogram("end-to-end latency", "us");
+    static final Histogram ackRoundTrip = new Histogram("ACK round trip", "us");
+    static final Histogram catchUp = new Histogram("archive catch-up", "us");
+    static final AtomicLong sent = new AtomicLong();
+    static final AtomicLong delivered = new AtomicLong();
+    static final AtomicLong archived = new AtomicLong();
+    static final AtomicLong dropped = new AtomicLong();
+
+    // mean time between two messages of this user
+    private final double meanIntervalMillis;
+    // messageId -> System.nanoTime() when written
+    private final Map<String, Long> sendTimes = new ConcurrentHashMap<String, Long>();
 
     public LoadUI (Options options) throws IOException {
         super(options);
+        meanIntervalMillis = rate > 0 ? clients * 1000.0 / rate : Double.MAX_VALUE;
     }
-    
-    // log received text onto console
+
+    // count what arrives, don't print it
+    @Override
     void writeServerMessage(Message message){
+        if (MessageType.ARCHIVEDMSG == message.messageType) {
+            archived.incrementAndGet();
+            return;
+        }
+        if (MessageType.USERMSG != message.messageType) return;
         if (usePayloadEncryption){
             message.messageBody = objCrypt.decryptString(message.messageBody);
         }
-        Logger.log(Level.FINEST, message.userName+"# "+message.messageBody);
+        String body = message.messageBody;
+        int space = body.indexOf(' ');
+        if (space < 1) return;
+        try {
+            long sendTime = Long.parseLong(body.substring(0, space));
+            latency.record((System.nanoTime() - sendTime) / 1000);
+            delivered.incrementAndGet();
+        } catch (NumberFormatException nfe) {
+            // not from a LoadUI
+        }
     }
 
-    synchronized String getUserInput(){
-        if (sentences == null){
-            sentences = Collections.synchronizedList(new ArrayList<String>());
-            BufferedReader sentenceReader = null;
-            try {
-                sentenceReader = new BufferedReader (new FileReader("/homes/ok/tmp/alice.txt"));
-                String input;
-                while ((input = sentenceReader.readLine()) != null){
-                    if (sentences == null) {System.err.println(" loop sentences null");
-                    Logger.logStd(Level.SEVERE, " loop sentences null");}
-                    
-                    sentences.add(input);
-                }
-            } catch (IOException ioe) {
-                ioe.printStackTrace();
-                System.exit(1);
-            } finally {
-                try {
-                    if (sentenceReader != null) sentenceReader.close();
-                } catch (IOException e){
-                    //
-                }
-            }
+    @Override
+    void messageSent(Message message){
+        if (MessageType.USERMSG != message.messageType && MessageType.ARCHIVE != message.messageType) return;
+        sendTimes.put(message.messageId, System.nanoTime());
+        if (MessageType.USERMSG == message.messageType) sent.incrementAndGet();
+    }
+
+    @Override
+    void messageAcked(Message message){
+        Long sendTime = sendTimes.remove(message.messageId);
+        if (sendTime != null) {
+            ackRoundTrip.record((System.nanoTime() - sendTime) / 1000);
         }
+    }
+
+    @Override
+    void archiveReplayed(Message request, int messages){
+        Long sendTime = sendTimes.remove(request.messageId);
+        if (sendTime != null) {
+            catchUp.record((System.nanoTime() - sendTime) / 1000);
+        }
+    }
 
-        //if (random == null) System.err.println("random null");
+    /** Wait for the next (exponentially distributed) send time, then make up a message. */
+    @Override
+    String getUserInput(){
+        long sleep = (long) (-Math.log(1.0 - RANDOM.nextDouble()) * meanIntervalMillis);
         try {
-            Thread.sleep (RANDOM.nextInt(1000));
-        } catch  (InterruptedException e){}
-        
-        if (sentences == null){ System.err.println("sentences null");
-        Logger.logStd(Level.SEVERE, " sentences null");}
-        
-        // delete spurious ctrl-@ characters (\c0) which mess up the Message
-        StringBuffer sb = new StringBuffer(sentences.get(RANDOM.nextInt(sentences.size()-1)));
-        for (int i = 0; i < sb.length(); i++){
-            if ((int)sb.charAt(i) == 0) sb.deleteCharAt(i);
-        }
-        String input = sb.toString();
-
-        return input;
+            Thread.sleep (Math.min(sleep, 3600 * 1000L));
+        } catch (InterruptedException e){
+            return null;
+        }
+        int size = minSize + (maxSize > minSize ? RANDOM.nextInt(maxSize - minSize + 1) : 0);
+        String sendTime = String.valueOf(System.nanoTime());
+        StringBuilder sb = new StringBuilder(Math.max(size, sendTime.length() + 1));
+        sb.append(sendTime).append(' ');
+        int offset = RANDOM.nextInt(FILLER_TEXT.length());
+        sb.append(filler, offset, offset + Math.max(0, size - sb.length()));
+        return sb.toString();
+    }
+
+    private void requestArchive (){
+        Message msg = new Message(userName, MessageType.ARCHIVE, String.valueOf(System.currentTimeMillis() - 60 * 1000L));
+        if (!messageQueue.offer(msg)){
+            Logger.log (Level.FINE, "Message queue full when adding archive request.");
+        }
     }
-    
+
+    // remove the load options from args, so the rest can go to Options
+    private static String[] parseLoadOptions (String[] args){
+        List<String> rest = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) {
+            String opt = args[i];
+            String parm = i + 1 < args.length ? args[i + 1] : "";
+            if ("-clients".equals(opt)) {
+                clients = Integer.parseInt(parm);
+            } else if ("-rate".equals(opt)) {
+                rate = Double.parseDouble(parm);
+            } else if ("-size".equals(opt)) {
+                String[] parts = parm.split("-");
+                minSize = Integer.parseInt(parts[0]);
+                maxSize = parts.length > 1 ? Integer.parseInt(parts[1]) : minSize;
+            } else if ("-churn".equals(opt)) {
+                churnSeconds = Integer.parseInt(parm);
+            } else if ("-archive".equals(opt)) {
+                archiveSeconds = Integer.parseInt(parm);
+            } else if ("-duration".equals(opt)) {
+                durationSeconds = Integer.parseInt(parm);
+            } else if ("-report".equals(opt)) {
+                reportSeconds = Integer.parseInt(parm);
+            } else if ("-hub".equals(opt)) {
+                hubMode = parm;
+            } else {
+                rest.add(opt);
+                continue;
+            }
+            i++;
+        }
+        return rest.toArray(new String[rest.size()]);
+    }
+
+    private static void report (long startTime){
+        long seconds = Math.max(1, (System.currentTimeMillis() - startTime) / 1000);
+        System.out.println(String.format("%5ds  sent %d (%d/s)  delivered %d (%d/s)  archived %d  dropped connections %d",
+                seconds, sent.get(), sent.get() / seconds, delivered.get(), delivered.get() / seconds,
+                archived.get(), dropped.get()));
+        System.out.println("       " + latency);
+        System.out.println("       " + ackRoundTrip);
+        System.out.println("       " + catchUp);
+        for (Histogram h : Trace.client.histograms()) {
+            System.out.println("       " + h);
+        }
+        for (Histogram h : Trace.hub.histograms()) {
+            System.out.println("       hub " + h);
+        }
+    }
+
     public static void main (String[] args) {
-        final Options options = new Options(args);
-        options.optHost = "localhost";
+        // quiet by default: every received message is logged at INFO; "-l" overrides
+        Logger.setLogLevel(Level.WARNING);
+        final Options options = new Options(parseLoadOptions(args));
+        if (options.unknownOptionFound){
+            options.printUsage();
+            System.exit(1);
+        }
+        if (options.optHost == null) options.optHost = "localhost";
         options.optPopups = false;
-        options.optUser = "loadui " + RANDOM.nextInt(9999);
-        LoadUI loadui = null;
+        // the simulated users can't share one drafts file
+        options.optDraftsFile = null;
+        while (filler.length() < FILLER_TEXT.length() + maxSize) filler += FILLER_TEXT;
+
+        if (hubMode != null) {
+            Hub.main(new String[]{"-p", String.valueOf(options.optPort), "-m", hubMode,
+                    options.optUseEncryption ? "-c" : "-noc", "-e", options.optCipher});
+        }
+
+        System.out.println(String.format("%d clients, %.1f msgs/s, size %d-%d, churn %ds, archive %ds, %ds%s",
+                clients, rate, minSize, maxSize, churnSeconds, archiveSeconds, durationSeconds,
+                hubMode == null ? "" : ", hub mode " + hubMode));
+
+        final List<LoadUI> loadUIs = new ArrayList<LoadUI>();
         try {
-            loadui = new LoadUI(options);
-            loadui.connect(System.currentTimeMillis());
-        } catch (Exception e){
-            System.err.println(e);
-            if (loadui != null)
-                loadui.shutdownUI();
+            for (int i = 0; i < clients; i++) {
+                options.optUser = "load-" + i;
+                LoadUI loadui = new LoadUI(options);
+                loadui.connect(System.currentTimeMillis());
+                loadUIs.add(loadui);
+            }
+        } catch (IOException e){
+            System.err.println("Could not connect: " + e);
             System.exit(1);
         }
-        
-        Runtime.getRuntime().addShutdownHook(new Thread() {
-            public void run() {
-                Logger.log(Level.INFO, "Entering shutdown hook");
-                try {
-                    if (options.optLogfile != null){
-                        try {
-                            // give all threads the chance to write last entries
-                            Thread.sleep (1000);
-                        } catch (InterruptedException e){}
-                        Logger.closeLogFile();
+        final long startTime = System.currentTimeMillis();
+        System.out.println(clients + " clients connected");
+
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "LoadUI");
+                        t.setDaemon(true);
+                        return t;
                     }
-                } catch (IOException e) {
-                    System.err.println("Could not close log file: " + e.getMessage());
+                });
+        if (reportSeconds > 0) {
+            scheduler.scheduleAtFixedRate(new Runnable() {
+                public void run() {
+                    report(startTime);
                 }
-            }
-           });
+            }, reportSeconds, reportSeconds, TimeUnit.SECONDS);
+        }
+        if (churnSeconds > 0) {
+            scheduleRandomly(scheduler, churnSeconds, new Runnable() {
+                public void run() {
+                    loadUIs.get(RANDOM.nextInt(loadUIs.size())).dropConnection();
+                    dropped.incrementAndGet();
+                }
+            });
+        }
+        if (archiveSeconds > 0) {
+            scheduleRandomly(scheduler, archiveSeconds, new Runnable() {
+                public void run() {
+                    loadUIs.get(RANDOM.nextInt(loadUIs.size())).requestArchive();
+                }
+            });
+        }
 
-        
         try {
-//            Thread.sleep (random.nextInt(500000));
-            Thread.sleep (86400000);
+            Thread.sleep (durationSeconds * 1000L);
         } catch (InterruptedException e){}
-        
-        
-        
-        Logger.log(Level.INFO, "LoadUI closing");
-        if (loadui != null)
+
+        scheduler.shutdownNow();
+        System.out.println("Result:");
+        report(startTime);
+        // without the totals and the end of connection of every single client
+        Logger.setLogLevel(Level.OFF);
+        for (LoadUI loadui : loadUIs) {
             loadui.shutdownUI();
+        }
         System.exit(0);
-        
-        
-        
     }
 
-    
+    // run the task again and again, at exponentially distributed intervals
+    private static void scheduleRandomly (final ScheduledExecutorService scheduler, final int meanSeconds,
+            final Runnable task){
+        long delay = (long) (-Math.log(1.0 - RANDOM.nextDouble()) * meanSeconds * 1000);
+        scheduler.schedule(new Runnable() {
+            public void run() {
+                task.run();
+                scheduleRandomly(scheduler, meanSeconds, task);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
 }
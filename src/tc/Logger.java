@@ -7,13 +7,44 @@ import java.io.IOException;
 import java.io.Writer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
+/**
+ * Log to the console or, after {@link #setLogFile(File)}, to a file. File
+ * lines are handed to a writer thread through a bounded queue and written
+ * and flushed in batches, so logging threads don't wait for the disk. If the
+ * queue is full, lines below WARNING are dropped (and counted in the file);
+ * WARNING and above wait for room (up to a second, then they go to stderr).
+ * <p>
+ * On hot paths, don't build the message if the level is off: use
+ * {@link #isLoggable(Level)} or the format variant
+ * {@link #log(Level, String, Object...)}.
+ *
+ * @author ok
+ *
+ */
 public final class Logger {
     
-    private static Level logLevel = Level.INFO;
-    private static Writer logWriter;
+    private static final String LINE_SEPARATOR = System.getProperty("line.separator");
+    private static final int QUEUE_SIZE = 8192;
+    private static final int BATCH_SIZE = 512;
+    // tells the writer thread to stop
+    private static final String CLOSE = new String("close");
+
+    private static volatile Level logLevel = Level.INFO;
+    private static volatile int logLevelValue = logLevel.intValue();
+    // only used by the writer thread while the file is open
+    private static volatile Writer logWriter;
+    private static BlockingQueue<String> fileQueue;
+    private static Thread fileWriterThread;
+    private static final AtomicLong dropped = new AtomicLong();
     //private static final DateFormat timeFormat = new SimpleDateFormat("d.MM HH:mm:ss.S");
     private static final ThreadLocal<DateFormat> TIME_FORMAT =
         new ThreadLocal<DateFormat>() {
@@ -29,6 +60,14 @@ public final class Logger {
                     return new SimpleDateFormat("dd.MM.yyyy HH:mm:ss.S z");
                 }
         };
+    // {Long time, String formatted}
+    private static final ThreadLocal<Object[]> LAST_TIME =
+        new ThreadLocal<Object[]>() {
+            @Override
+                protected Object[] initialValue() {
+                    return new Object[]{-1L, null};
+                }
+        };
     static {
         TIME_FORMAT.get().setTimeZone(TimeZone.getTimeZone("UTC"));
     }
@@ -39,16 +78,34 @@ public final class Logger {
 
     /** constructs a log entry with date tag from a message */
     private static String dolog (Level level, String s){
-        StringBuilder output = new StringBuilder()
-        .append("[")
-        .append(String.format("%-7s", level.toString())).append('|')
-        .append(String.format("%-10s", Thread.currentThread().getName())).append('|')
-        .append(String.format("%-18s", TIME_FORMAT.get().format(System.currentTimeMillis())))
+        StringBuilder output = new StringBuilder(64 + s.length()).append("[");
+        // padded by hand: String.format() costs more than the rest of the line
+        pad(output, level.toString(), 7).append('|');
+        pad(output, Thread.currentThread().getName(), 10).append('|');
+        pad(output, timeStamp(), 18)
         .append("]: ")
         .append(s).append(' ')
-        .append(System.getProperty("line.separator"));
+        .append(LINE_SEPARATOR);
         return output.toString();
     }
+
+    // formatted once per thread and millisecond
+    private static String timeStamp (){
+        long now = System.currentTimeMillis();
+        Object[] last = LAST_TIME.get();
+        if ((Long) last[0] != now) {
+            last[0] = now;
+            last[1] = TIME_FORMAT.get().format(now);
+        }
+        return (String) last[1];
+    }
+
+    // like "%-<width>s"
+    private static StringBuilder pad (StringBuilder sb, String s, int width){
+        sb.append(s);
+        for (int i = s.length(); i < width; i++) sb.append(' ');
+        return sb;
+    }
     
     /** constructs a log entry with date tag from a message and exception */
     private static String dolog (Level level, String s, Exception e){
@@ -57,12 +114,7 @@ public final class Logger {
     
     private static void doWriteOut (String s) {
         if (logWriter != null) {
-            try {
-                logWriter.write(s);
-                logWriter.flush();
-            } catch (IOException ioe) {
-                System.err.println("Could not write to log file: " + s);
-            }
+            enqueue(s, false);
         } else {
             System.out.print(s);
         }
@@ -70,20 +122,83 @@ public final class Logger {
 
     private static void doWriteErr (String s) {
         if (logWriter != null) {
-            try {
-                logWriter.write(s);
-                logWriter.flush();
-            } catch (IOException ioe) {
-                System.err.println("Could not write to log file: " + s);
-            }
+            enqueue(s, true);
         } else {
             System.err.print(s);
         }
     }
-    
+
+    private static void enqueue (String s, boolean important){
+        BlockingQueue<String> queue = fileQueue;
+        if (queue == null || queue.offer(s)) return;
+        if (!important) {
+            dropped.incrementAndGet();
+            return;
+        }
+        try {
+            // not forever: the file may just be closing
+            if (queue.offer(s, 1, TimeUnit.SECONDS)) return;
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+        System.err.print(s);
+    }
+
+    /** Writes the queued lines, flushing once per batch. */
+    private static class FileWriterThread extends Thread {
+        private final BlockingQueue<String> queue;
+        private final Writer writer;
+
+        FileWriterThread (BlockingQueue<String> queue, Writer writer){
+            super("LogWriter");
+            setDaemon(true);
+            this.queue = queue;
+            this.writer = writer;
+        }
+
+        @Override
+        public void run (){
+            List<String> batch = new ArrayList<String>(BATCH_SIZE);
+            boolean closing = false;
+            while (!closing) {
+                try {
+                    batch.add(queue.take());
+                } catch (InterruptedException ie) {
+                    // only closeLogFile() stops us
+                    continue;
+                }
+                queue.drainTo(batch, BATCH_SIZE - 1);
+                try {
+                    for (String s : batch) {
+                        if (s == CLOSE) {
+                            closing = true;
+                            break;
+                        }
+                        writer.write(s);
+                    }
+                    long n = dropped.getAndSet(0);
+                    if (n > 0) writer.write(dolog(Level.WARNING, n + " log line(s) dropped, log queue full"));
+                    writer.flush();
+                } catch (IOException ioe) {
+                    System.err.println("Could not write to log file: " + ioe);
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    /** True if a message of this level would be logged; for messages that are expensive to build. */
+    static boolean isLoggable (Level level){
+        return level.intValue() >= logLevelValue;
+    }
+
+    /** Log String.format(format, args), formatted only if the level is on. */
+    static void log (Level level, String format, Object... args){
+        if (isLoggable(level)) log(level, String.format(format, args));
+    }
 
     static void log (Level level, String s){
-        if (level.intValue() >= logLevel.intValue()){
+        if (level.intValue() >= logLevelValue){
             if (level.intValue() >= Level.WARNING.intValue()){
                 doWriteErr(dolog(level, s));
             } else {
@@ -93,7 +208,7 @@ public final class Logger {
     }
 
     static void logStd (Level level, String s){
-        if (level.intValue() >= logLevel.intValue()){
+        if (level.intValue() >= logLevelValue){
             if (level.intValue() >= Level.WARNING.intValue()){
                 System.err.println(dolog(level, s));
             } else {
@@ -104,9 +219,9 @@ public final class Logger {
     
     static void log (Level level, String s, Exception e){
         
-        if (level.intValue() >= logLevel.intValue()){
+        if (level.intValue() >= logLevelValue){
             doWriteErr(dolog(level, s, e));
-            if (logLevel.intValue() <= Level.FINE.intValue()){
+            if (logLevelValue <= Level.FINE.intValue()){
                 for (StackTraceElement ste : e.getStackTrace()){
                     doWriteErr(String.format("         %s%n", ste.toString()));
                 }
@@ -114,24 +229,39 @@ public final class Logger {
         }
     }
     
-    static void setLogFile (File file) throws IOException {
+    static synchronized void setLogFile (File file) throws IOException {
         if (file != null && !"-".equals(file.getName())) {
             log (Level.FINEST, "Opening log file for writing: " + file.getCanonicalPath());
-            logWriter = new BufferedWriter(new FileWriter(file, true /*append*/));
-            logWriter.write("==========  Opened log file " + DATE_TIME_FORMAT.get().format(System.currentTimeMillis()) + " ==========\n");
-            logWriter.flush();
+            Writer writer = new BufferedWriter(new FileWriter(file, true /*append*/));
+            writer.write("==========  Opened log file " + DATE_TIME_FORMAT.get().format(System.currentTimeMillis()) + " ==========\n");
+            writer.flush();
+            fileQueue = new ArrayBlockingQueue<String>(QUEUE_SIZE);
+            fileWriterThread = new FileWriterThread(fileQueue, writer);
+            fileWriterThread.start();
+            logWriter = writer;
         }
     }
     
-    static void closeLogFile () throws IOException {
-        if (logWriter != null) {
-            logWriter.write("..........  Closed log file " + DATE_TIME_FORMAT.get().format(System.currentTimeMillis()) + " ..........\n");
-            logWriter.close();
+    /** Write what is queued and close the file; afterwards the log goes to the console again. */
+    static synchronized void closeLogFile () throws IOException {
+        Writer writer = logWriter;
+        if (writer != null) {
+            logWriter = null;
+            try {
+                fileQueue.put(CLOSE);
+                fileWriterThread.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            fileQueue = null;
+            writer.write("..........  Closed log file " + DATE_TIME_FORMAT.get().format(System.currentTimeMillis()) + " ..........\n");
+            writer.close();
         }
     }
     
     static void setLogLevel (Level newLevel){
         logLevel = newLevel;
+        logLevelValue = newLevel.intValue();
     }
     
     static String getLevel(){
@@ -1,5 +1,6 @@
 package tc;
 
+import java.util.Arrays;
 import java.util.logging.Level;
 import java.util.UUID;
 
@@ -24,13 +25,32 @@ public class Message {
     }
     
     static final char FS = '|';
+
+    // for parsing without MessageType.valueOf()
+    private static final MessageType[] TYPES = MessageType.values();
+    private static final String[] TYPE_NAMES = new String[TYPES.length];
+    static {
+        for (int i = 0; i < TYPES.length; i++) {
+            TYPE_NAMES[i] = TYPES[i].name();
+        }
+    }
     
     String userName;
     String messageBody;
     MessageType messageType;
     String messageId;
     long timeStamp = -1L;
-    boolean acked;
+    // the hub's sequence number of a broadcast or archived message, 0 if none;
+    // only binary frames carry it (see Framing)
+    long seq;
+    // System.nanoTime() when the hub received the message, for the fan-out
+    // latency (see Metrics); not sent, not copied
+    long hubNanos;
+    // trace stamps of a traced user message, indexed as in Trace, else null;
+    // only binary frames carry them
+    long[] trace;
+    // cached result of toStructuredString()
+    private Structured structured;
     
     /* TODO: make even better id; collisions are still possible, e.g.
     [FINEST |RcveThread|23.02 14:40:35.763]:   -- Parsing 'loadui 2388|USERMSG|1298472035762|7533142544|him,) 'I'll give him sixpence. _I_ don't believe there's a
@@ -63,30 +83,63 @@ n atom of'
         this.messageId = messageId;
     }
     
+    /**
+     * Parse a structured string in one pass: the separators are found by
+     * index, the time stamp is parsed in place and the type is looked up in
+     * {@link #TYPES}. The string is kept as the cached structured form.
+     */
     public Message (String structuredString) throws MessageException {
-        Logger.log (Level.FINEST, "  -- Parsing '"+structuredString+"'");
-        String[] parts = structuredString.split("\\"+FS);
-        if (parts.length != 5) {
-            Logger.log (Level.FINE, String.format("StructuredString [%d parts]:'%s'",parts.length, structuredString));
+        // the check first, else every parse allocates the varargs array
+        if (Logger.isLoggable(Level.FINEST)) Logger.log (Level.FINEST, "  -- Parsing '" + structuredString + "'");
+        String s = structuredString;
+        int userEnd = s.indexOf(FS);
+        int typeEnd = userEnd < 0 ? -1 : s.indexOf(FS, userEnd + 1);
+        int timeEnd = typeEnd < 0 ? -1 : s.indexOf(FS, typeEnd + 1);
+        int idEnd = timeEnd < 0 ? -1 : s.indexOf(FS, timeEnd + 1);
+        if (idEnd < 0 || s.indexOf(FS, idEnd + 1) >= 0) {
+            Logger.log (Level.FINE, "StructuredString:'%s'", s);
             throw new MessageException ("Expected exactly 5 parts to message string.");
         }
-            
-        userName = parts[0];
-        try {
-            messageType = MessageType.valueOf(parts[1]);
-        } catch (IllegalArgumentException iae){
-            throw new MessageException("Unknown message type: "+ parts[1]);
+
+        messageType = typeOf(s, userEnd + 1, typeEnd);
+        if (messageType == null){
+            throw new MessageException("Unknown message type: "+ s.substring(userEnd + 1, typeEnd));
+        }
+        timeStamp = parseTimeStamp(s, typeEnd + 1, timeEnd);
+        userName = s.substring(0, userEnd);
+        messageId = s.substring(timeEnd + 1, idEnd);
+        messageBody = s.substring(idEnd + 1);
+        structured = new Structured(this, s);
+    }
+
+    private static MessageType typeOf (String s, int start, int end){
+        int length = end - start;
+        for (int i = 0; i < TYPES.length; i++) {
+            String name = TYPE_NAMES[i];
+            if (name.length() == length && s.regionMatches(start, name, 0, length)) {
+                return TYPES[i];
+            }
         }
-        try {
-            timeStamp = Long.parseLong(parts[2]);
-        } catch (NumberFormatException nfe) {
-            throw new MessageException("Not a number: "+ parts[2]);
+        return null;
+    }
+
+    private static long parseTimeStamp (String s, int start, int end) throws MessageException {
+        if (start < end && s.charAt(start) == '-') {
+            throw new MessageException("Negative timestamp: "+ s.substring(start, end));
         }
-        if (timeStamp < 0){
-            throw new MessageException("Negative timestamp: "+ parts[2]);
+        if (start == end || end - start > 18) {
+            // 18 digits can't overflow a long
+            throw new MessageException("Not a number: "+ s.substring(start, end));
         }
-        messageId = parts[3];
-        messageBody = parts[4];
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new MessageException("Not a number: "+ s.substring(start, end));
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
     }
     
     /**
@@ -98,8 +151,10 @@ n atom of'
      * @return an identical copy/clone of the original
      */
     public static Message createCopy (Message msg) {
-        return (new Message (msg.userName, msg.messageType, msg.timeStamp, 
-                msg.messageBody, msg.messageId));
+        Message copy = new Message (msg.userName, msg.messageType, msg.timeStamp, 
+                msg.messageBody, msg.messageId);
+        copy.seq = msg.seq;
+        return copy;
     }
     
     /** Quick way to create ACK messages: all fields are the same, except the body. */
@@ -116,15 +171,82 @@ n atom of'
             "ACK".equals(a.messageBody);
     }
     
+    /**
+     * The message as "user|TYPE|time|id|body". Built once and cached, like the
+     * encoded frames; the cache is only used while the fields still are the
+     * ones it was built from (the body of a received message may be replaced
+     * by its decrypted text).
+     */
     public String toStructuredString (){
-        StringBuilder sb = new StringBuilder();
+        return structured().string;
+    }
+
+    /** The encoded frame of this message; see {@link Framing#encode(Message)}. */
+    byte[] frame (Framing framing){
+        Structured st = structured();
+        byte[][] frames = st.frames;
+        byte[] frame = frames == null ? null : frames[framing.index];
+        if (frame == null) {
+            frame = framing.encodeFrame(this);
+            // copy on write; if two threads race, one of them has encoded in vain
+            byte[][] copy = frames == null ? new byte[Framing.COUNT][] : frames.clone();
+            copy[framing.index] = frame;
+            st.frames = copy;
+        }
+        return frame;
+    }
+
+    private Structured structured (){
+        Structured st = structured;
+        if (st != null && st.matches(this)) return st;
+
+        StringBuilder sb = new StringBuilder(64 + (messageBody == null ? 0 : messageBody.length()));
         sb.append(userName).append(FS);
         sb.append(messageType.name()).append(FS);
         sb.append(timeStamp).append(FS);
         sb.append(messageId).append(FS);
         sb.append(messageBody);
         
-        return sb.toString();
+        st = new Structured(this, sb.toString());
+        structured = st;
+        return st;
+    }
+
+    /**
+     * A structured string and the fields it was built from; immutable, so it
+     * can be shared with other threads (broadcast and archived messages are)
+     * without locking. The encoded frames are added when first needed.
+     */
+    private static final class Structured {
+        final String userName;
+        final MessageType messageType;
+        final long timeStamp;
+        final String messageId;
+        final String messageBody;
+        final long seq;
+        final long[] trace;
+        final String string;
+        // indexed by Framing.index; replaced, never modified
+        volatile byte[][] frames;
+
+        Structured (Message msg, String string){
+            this.userName = msg.userName;
+            this.messageType = msg.messageType;
+            this.timeStamp = msg.timeStamp;
+            this.messageId = msg.messageId;
+            this.messageBody = msg.messageBody;
+            this.seq = msg.seq;
+            this.trace = msg.trace == null ? null : msg.trace.clone();
+            this.string = string;
+        }
+
+        // same objects, not just equal ones: cheap, and enough to catch modified fields
+        // (trace stamps are written into the array, so that is compared by value)
+        boolean matches (Message msg){
+            return userName == msg.userName && messageType == msg.messageType && 
+                timeStamp == msg.timeStamp && messageId == msg.messageId && messageBody == msg.messageBody &&
+                seq == msg.seq && Arrays.equals(trace, msg.trace);
+        }
     }
     
     static class MessageException extends Exception {
@@ -0,0 +1,166 @@
+package tc;
+
+import static tc.Message.MessageType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The Hub's most recent messages in a ring buffer of fixed capacity, kept in
+ * time stamp order so that "messages since x" is a binary search plus a copy
+ * of the tail. Many clients can read at the same time (e.g. everybody asking
+ * for the archive after the Hub has restarted); only adding takes the
+ * exclusive lock.
+ * Messages are stored as {@link MessageType#ARCHIVEDMSG} copies and are
+ * handed out shared, so callers must not modify them.
+ * <p>
+ * A second ring of the same capacity has the messages in the order they
+ * were added, which is the order of their sequence numbers, so that
+ * "messages after sequence number n" is a binary search as well.
+ *
+ * @author ok
+ *
+ */
+class MessageArchive {
+
+    private final Message[] ring;
+    // index of the oldest message
+    private int head;
+    private int size;
+    // the same messages by sequence number (the order of adding); index of the oldest, count
+    private final Message[] added;
+    private int addedHead;
+    private int addedSize;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private static final Comparator<Message> BY_TIME_STAMP = new Comparator<Message>() {
+        public int compare (Message a, Message b){
+            return a.timeStamp < b.timeStamp ? -1 : (a.timeStamp == b.timeStamp ? 0 : 1);
+        }
+    };
+
+    MessageArchive (int capacity){
+        ring = new Message[capacity];
+        added = new Message[capacity];
+    }
+
+    /**
+     * Add a message, dropping the oldest one if the archive is full. Messages
+     * normally arrive in time stamp order; a late one (client clocks differ)
+     * is moved back to its place.
+     */
+    void add (Message msg){
+        Message archived = new Message(msg.userName, MessageType.ARCHIVEDMSG, msg.timeStamp,
+                msg.messageBody, msg.messageId);
+        archived.seq = msg.seq;
+        lock.writeLock().lock();
+        try {
+            if (size == ring.length) {
+                if (archived.timeStamp < ring[head].timeStamp) {
+                    // older than everything we keep
+                    return;
+                }
+                ring[head] = null;
+                head = (head + 1) % ring.length;
+                size--;
+            }
+            int i = size;
+            while (i > 0 && get(i - 1).timeStamp > archived.timeStamp) {
+                ring[index(i)] = get(i - 1);
+                i--;
+            }
+            ring[index(i)] = archived;
+            size++;
+
+            if (addedSize == added.length) {
+                added[addedHead] = null;
+                addedHead = (addedHead + 1) % added.length;
+                addedSize--;
+            }
+            added[(addedHead + addedSize) % added.length] = archived;
+            addedSize++;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** All messages with a time stamp later than "since", oldest first. */
+    List<Message> since (long since){
+        lock.readLock().lock();
+        try {
+            // first position with timeStamp > since
+            int lo = 0;
+            int hi = size;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (get(mid).timeStamp > since) {
+                    hi = mid;
+                } else {
+                    lo = mid + 1;
+                }
+            }
+            List<Message> result = new ArrayList<Message>(size - lo);
+            for (int i = lo; i < size; i++) {
+                result.add(get(i));
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * All messages with a sequence number greater than "seq", in time stamp
+     * order. Sequence numbers are given in arrival order, which is not always
+     * time stamp order: the messages are found in the order of adding and
+     * sorted, which for the few a reconnecting client has missed is cheap.
+     */
+    List<Message> after (long seq){
+        lock.readLock().lock();
+        try {
+            // first position with seq > seq
+            int lo = 0;
+            int hi = addedSize;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (added[(addedHead + mid) % added.length].seq > seq) {
+                    hi = mid;
+                } else {
+                    lo = mid + 1;
+                }
+            }
+            List<Message> result = new ArrayList<Message>(addedSize - lo);
+            for (int i = lo; i < addedSize; i++) {
+                result.add(added[(addedHead + i) % added.length]);
+            }
+            // stable, and nearly sorted already
+            Collections.sort(result, BY_TIME_STAMP);
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    int size (){
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // i-th oldest message; caller must hold the lock
+    private Message get (int i){
+        return ring[index(i)];
+    }
+
+    private int index (int i){
+        return (head + i) % ring.length;
+    }
+
+}
@@ -0,0 +1,190 @@
+package tc;
+
+import static tc.Message.MessageType;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Level;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Counters and histograms of the hub. Recording is a few atomic operations
+ * and never allocates (except for the first failure of a new reason); the
+ * gauges (clients, queue depths, archive size) are only read when the
+ * metrics are asked for.
+ * <p>
+ * With "-s &lt;port&gt;" the hub serves them on http://localhost:&lt;port&gt;/metrics
+ * in the Prometheus text format, for scraping or for a look with curl.
+ *
+ * @author ok
+ *
+ */
+final class Metrics {
+
+    private static final MessageType[] TYPES = MessageType.values();
+
+    /** Messages received from clients after the handshake, by MessageType ordinal. */
+    static final AtomicLongArray received = new AtomicLongArray(TYPES.length);
+    /** From the hub receiving a message to a connection's writer taking it from the outbound queue. */
+    static final Histogram fanOut = new Histogram("fan-out latency", "us");
+    /** Archive requests by kind: seq (answered by sequence number), seq-miss (by time instead), since, latest. */
+    static final ConcurrentMap<String, AtomicLong> archiveRequests = new ConcurrentHashMap<String, AtomicLong>();
+    static final AtomicLong archivedMessagesSent = new AtomicLong();
+    /** User messages that a client sent again after a lost ACK, ACKed but not broadcast. */
+    static final AtomicLong resentMessages = new AtomicLong();
+    /** Connections that didn't get through the handshake, by reason. */
+    static final ConcurrentMap<String, AtomicLong> handshakeFailures = new ConcurrentHashMap<String, AtomicLong>();
+
+    // reasons of handshake failures
+    static final String HANDSHAKE_VERSION = "version";
+    static final String HANDSHAKE_ENCRYPTION = "encryption";
+    static final String HANDSHAKE_USER = "user name taken";
+    static final String HANDSHAKE_PROTOCOL = "protocol";
+    static final String HANDSHAKE_TIMEOUT = "timeout";
+    static final String HANDSHAKE_IO = "io";
+
+    private static HttpServer server;
+
+    // hidden utility class constructor
+    private Metrics(){
+    }
+
+    static void messageReceived (Message msg){
+        received.incrementAndGet(msg.messageType.ordinal());
+    }
+
+    static void archiveRequested (String kind){
+        increment(archiveRequests, kind);
+    }
+
+    static void handshakeFailed (String reason){
+        increment(handshakeFailures, reason);
+    }
+
+    private static void increment (ConcurrentMap<String, AtomicLong> counters, String key){
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            AtomicLong newCounter = new AtomicLong();
+            counter = counters.putIfAbsent(key, newCounter);
+            if (counter == null) counter = newCounter;
+        }
+        counter.incrementAndGet();
+    }
+
+    /** Serve the metrics on the loopback interface. */
+    static synchronized void start (int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getByName(null), port), 0);
+        server.createContext("/metrics", new HttpHandler() {
+            public void handle (HttpExchange exchange) throws IOException {
+                byte[] body = render().getBytes(Framing.UTF8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream os = exchange.getResponseBody();
+                try {
+                    os.write(body);
+                } finally {
+                    os.close();
+                }
+            }
+        });
+        server.start();
+        Logger.log(Level.INFO, "Metrics on http://localhost:" + port + "/metrics");
+    }
+
+    static synchronized void stop (){
+        if (server != null) server.stop(0);
+        server = null;
+    }
+
+    /** All metrics in the Prometheus text format. */
+    static String render (){
+        StringBuilder sb = new StringBuilder(4096);
+
+        List<Connection> connections = new ArrayList<Connection>();
+        for (Connection c : Hub.clients.values()) {
+            if (c.established) connections.add(c);
+        }
+        header(sb, "tc_clients", "gauge", "connected clients");
+        sb.append("tc_clients ").append(connections.size()).append('\n');
+        header(sb, "tc_outbound_queue_depth", "gauge", "broadcasts waiting to be written, per client");
+        for (Connection c : connections) {
+            sb.append("tc_outbound_queue_depth{user=\"").append(escape(c.userName)).append("\"} ")
+              .append(c.outbound.size()).append('\n');
+        }
+        header(sb, "tc_outbound_dropped_total", "counter", "broadcasts dropped because a client's queue was full");
+        sb.append("tc_outbound_dropped_total ").append(OutboundQueue.totalDropped.get()).append('\n');
+        header(sb, "tc_outbound_spilled_total", "counter", "broadcasts spilled to disk");
+        sb.append("tc_outbound_spilled_total ").append(OutboundQueue.totalSpilled.get()).append('\n');
+        header(sb, "tc_outbound_disconnects_total", "counter", "slow clients disconnected");
+        sb.append("tc_outbound_disconnects_total ").append(OutboundQueue.totalDisconnects.get()).append('\n');
+
+        header(sb, "tc_messages_received_total", "counter", "messages received from clients, by type");
+        for (MessageType type : TYPES) {
+            sb.append("tc_messages_received_total{type=\"").append(type).append("\"} ")
+              .append(received.get(type.ordinal())).append('\n');
+        }
+        header(sb, "tc_messages_resent_total", "counter", "user messages sent again after a lost ACK, not broadcast again");
+        sb.append("tc_messages_resent_total ").append(resentMessages.get()).append('\n');
+        summary(sb, "tc_fanout_latency_us", "from receipt by the hub to the writer of each recipient", fanOut);
+
+        header(sb, "tc_archive_size", "gauge", "messages in the archive");
+        sb.append("tc_archive_size ").append(Hub.getMessageArchiveSize()).append('\n');
+        labelled(sb, "tc_archive_requests_total", "counter", "archive requests, by kind", "kind", archiveRequests);
+        header(sb, "tc_archive_messages_sent_total", "counter", "archived messages sent to clients");
+        sb.append("tc_archive_messages_sent_total ").append(archivedMessagesSent.get()).append('\n');
+
+        Journal journal = Hub.getJournal();
+        if (journal != null) {
+            summary(sb, "tc_journal_append_latency_us", "from queueing to the journal file", journal.appendLatency);
+        }
+
+        for (Histogram h : Trace.hub.histograms()) {
+            summary(sb, "tc_" + h.getName().replaceAll("[^a-z]+", "_") + "_us", "segment of traced messages", h);
+        }
+
+        labelled(sb, "tc_handshake_failures_total", "counter", "connections rejected or lost in the handshake, by reason",
+                "reason", handshakeFailures);
+        return sb.toString();
+    }
+
+    private static void header (StringBuilder sb, String name, String type, String help){
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void labelled (StringBuilder sb, String name, String type, String help, String label,
+            Map<String, AtomicLong> counters){
+        header(sb, name, type, help);
+        for (Map.Entry<String, AtomicLong> e : counters.entrySet()) {
+            sb.append(name).append('{').append(label).append("=\"").append(escape(e.getKey())).append("\"} ")
+              .append(e.getValue().get()).append('\n');
+        }
+    }
+
+    private static void summary (StringBuilder sb, String name, String help, Histogram h){
+        header(sb, name, "summary", help);
+        double[] quantiles = {0.5, 0.9, 0.99};
+        for (double q : quantiles) {
+            sb.append(name).append("{quantile=\"").append(q).append("\"} ").append(h.percentile(q * 100)).append('\n');
+        }
+        sb.append(name).append("_sum ").append(h.sum()).append('\n');
+        sb.append(name).append("_count ").append(h.count()).append('\n');
+    }
+
+    private static String escape (String s){
+        return s.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+}
@@ -0,0 +1,493 @@
+package tc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * A client connection served by one of the event loops of {@link NioServer}.
+ * Speaks the same wire protocol as {@link Client}: text or binary
+ * {@link Framing}, optionally deflate compressed and RC4 or {@link GcmTransport} encrypted, preceded by the
+ * VERSION/CONNECT/heartbeat handshake. Reading, handshake and writing happen on the event loop thread;
+ * {@link #sendMessage(Message)} may be called from any thread and only queues.
+ *
+ * @author ok
+ *
+ */
+class NioConnection extends Connection {
+
+    private static final int READ_BUFFER_SIZE = 8192;
+
+    private enum State { VERSION, CONNECT, HEARTBEAT, ESTABLISHED }
+
+    private final SocketChannel channel;
+    private final NioServer.EventLoop loop;
+    private SelectionKey key;
+
+    private boolean useEncryption;
+    private Cipher decCipher;
+    private Cipher encCipher;
+    private byte[] defaultKey = new byte[]{-25,101,-45,12,93,-38,-56,-7,-99,109,-83,78,-90,90,96,106};
+    // "-e gcm": no RC4, the client must ask for GcmTransport records
+    private boolean gcmRequired;
+    private byte[] secretKey;
+
+    private State state = State.VERSION;
+    // text until the VERSION ACK; changed before the connection is added to the Hub
+    private Framing framing = Framing.TEXT;
+
+    // only accessed by the event loop thread
+    private final ByteBuffer readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    // decrypted bytes not yet decoded, in write mode
+    private ByteBuffer frameBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+    // after the VERSION ACK, if the client asked for compression
+    private Inflater inflater;
+    // after the VERSION ACK, if the client asked for gcm: records not yet decrypted, in write mode
+    private GcmTransport gcmIn;
+    private ByteBuffer recordBuffer;
+    private ByteBuffer openBuffer;
+
+    // all access must be synchronized on outQueue; cipher state depends on queue order
+    private final Deque<ByteBuffer> outQueue = new ArrayDeque<ByteBuffer>();
+    private Deflater deflater;
+    private GcmTransport gcmOut;
+    private boolean closeAfterFlush;
+    // set once, by whichever thread closes first; the key and the channel are released on the event loop
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    NioConnection (SocketChannel channel, NioServer.EventLoop loop, Hub hub, Options options){
+        super(hub, options);
+        this.channel = channel;
+        this.loop = loop;
+        secretKey = options.optSecretKey == null ? defaultKey : options.optSecretKey;
+        if (options.optUseEncryption) {
+            if (Options.CIPHER_GCM.equals(options.optCipher)) {
+                gcmRequired = true;
+            } else {
+                setEncryption(options.optSecretKey);
+            }
+        }
+
+        Logger.log(Level.INFO, "================ New Client connection =========");
+        Logger.log(Level.INFO, "IP address: " + channel.socket().getInetAddress());
+    }
+
+    /** Called by the event loop after registering the channel with its selector. */
+    void setKey (SelectionKey key){
+        this.key = key;
+    }
+
+    private void setEncryption (byte[] secretKey){
+        byte[] raw;
+        if (secretKey == null) {
+            raw = defaultKey;
+        } else {
+            raw = secretKey;
+        }
+        this.useEncryption = true;
+        Logger.log(Level.INFO, "Encryption: " + useEncryption);
+        try {
+            SecretKey key = new SecretKeySpec(raw, "RC4");
+            decCipher = Cipher.getInstance("RC4");
+            decCipher.init(Cipher.DECRYPT_MODE, key);
+
+            encCipher = Cipher.getInstance("RC4");
+            encCipher.init(Cipher.ENCRYPT_MODE, key);
+        } catch (NoSuchAlgorithmException nsae){
+            this.useEncryption = false;
+            Logger.log(Level.WARNING, "NoSuchAlgorithmException, disabling encryption");
+        } catch (InvalidKeyException ivke) {
+            this.useEncryption = false;
+            Logger.log(Level.WARNING, "InvalidKeyException, disabling encryption");
+        } catch (GeneralSecurityException gse) {
+            this.useEncryption = false;
+            Logger.log(Level.WARNING, "GeneralSecurityException, disabling encryption");
+        }
+    }
+
+    /**
+     * Read what is available, decode the complete frames and act on them.
+     * Runs on the event loop thread.
+     */
+    void onReadable (){
+        try {
+            readBuffer.clear();
+            int n = channel.read(readBuffer);
+            if (n < 0) {
+                Logger.log(Level.INFO, "Client has disconnected: " + userName);
+                if (state != State.ESTABLISHED) Metrics.handshakeFailed(Metrics.HANDSHAKE_IO);
+                shutdown();
+                return;
+            }
+            alive();
+            byte[] data = readBuffer.array();
+            int length = n;
+            if (useEncryption) {
+                data = decCipher.update(data, 0, n);
+                if (data == null) return;
+                length = data.length;
+            }
+            if (gcmIn != null) {
+                openRecords(data, length);
+            } else {
+                received(data, length);
+            }
+            frameBuffer.flip();
+            try {
+                while (!closed.get() && frameBuffer.hasRemaining()) {
+                    Message message;
+                    try {
+                        message = framing.decode(frameBuffer);
+                    } catch (Message.MessageException me) {
+                        if (state != State.ESTABLISHED) {
+                            Logger.log (Level.WARNING, "Expected " + state + " message during handshake.", me);
+                            Metrics.handshakeFailed(Metrics.HANDSHAKE_PROTOCOL);
+                            shutdown();
+                        } else {
+                            Logger.log(Level.WARNING, "Expected message, was null.");
+                        }
+                        continue;
+                    }
+                    if (message == null) break;
+                    onMessage(message);
+                }
+            } finally {
+                frameBuffer.compact();
+            }
+        } catch (IOException ioe) {
+            Logger.log(Level.INFO, "Client has disconnected: " + userName + " (" + ioe.getMessage() + ")");
+            if (state != State.ESTABLISHED) Metrics.handshakeFailed(Metrics.HANDSHAKE_IO);
+            shutdown();
+        }
+    }
+
+    // decrypted bytes to the frame buffer
+    private void received (byte[] data, int length) throws IOException {
+        if (inflater != null) {
+            inflate(data, length);
+        } else {
+            ensureFrameBuffer(length);
+            frameBuffer.put(data, 0, length);
+        }
+    }
+
+    // decrypt the complete records; uncompressed they go straight into the frame buffer
+    private void openRecords (byte[] data, int length) throws IOException {
+        if (recordBuffer.remaining() < length) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(recordBuffer.capacity() * 2,
+                    recordBuffer.position() + length));
+            recordBuffer.flip();
+            bigger.put(recordBuffer);
+            recordBuffer = bigger;
+        }
+        recordBuffer.put(data, 0, length);
+        recordBuffer.flip();
+        try {
+            while (recordBuffer.remaining() >= 4) {
+                int recordLength = GcmTransport.recordLength(recordBuffer.getInt(recordBuffer.position()));
+                if (recordBuffer.remaining() < 4 + recordLength) break;
+                ByteBuffer record = recordBuffer.duplicate();
+                record.position(recordBuffer.position() + 4);
+                record.limit(record.position() + recordLength);
+                recordBuffer.position(record.limit());
+                int plainLength = gcmIn.openedSize(recordLength);
+                if (inflater == null) {
+                    ensureFrameBuffer(plainLength);
+                    gcmIn.open(record, frameBuffer);
+                } else {
+                    if (openBuffer == null || openBuffer.capacity() < plainLength) {
+                        openBuffer = ByteBuffer.allocate(Math.max(plainLength, READ_BUFFER_SIZE));
+                    }
+                    openBuffer.clear();
+                    gcmIn.open(record, openBuffer);
+                    inflate(openBuffer.array(), openBuffer.position());
+                }
+            }
+        } finally {
+            recordBuffer.compact();
+        }
+    }
+
+    private void ensureFrameBuffer (int length){
+        if (frameBuffer.remaining() < length) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(frameBuffer.capacity() * 2,
+                    frameBuffer.position() + length));
+            frameBuffer.flip();
+            bigger.put(frameBuffer);
+            frameBuffer = bigger;
+        }
+    }
+
+    // decompress straight into the frame buffer
+    private void inflate (byte[] data, int length) throws IOException {
+        inflater.setInput(data, 0, length);
+        try {
+            while (true) {
+                ensureFrameBuffer(length);
+                int n = inflater.inflate(frameBuffer.array(), frameBuffer.arrayOffset() + frameBuffer.position(),
+                        frameBuffer.remaining());
+                frameBuffer.position(frameBuffer.position() + n);
+                // the input may be used up while the inflater still holds output; done once nothing comes out
+                if (n == 0 && inflater.needsInput() || inflater.finished()) break;
+                if (n == 0 && inflater.needsDictionary()) throw new IOException("Compressed stream needs a dictionary");
+            }
+        } catch (DataFormatException dfe) {
+            throw new IOException("Corrupt compressed stream: " + dfe.getMessage());
+        }
+    }
+
+    private void onMessage (Message message) throws IOException {
+        if (message.messageType == null) return;
+
+        switch (state) {
+        case VERSION:
+            String rcvVer = message.messageBody;
+            Framing clientFraming = Framing.forVersion(rcvVer);
+            String rejection = null;
+            GcmTransport[] gcm = null;
+            // the hub's nonce of the gcm keys, sent back in the ACK
+            String hubNonce = null;
+            if (clientFraming == null){
+                rejection = "Client's version wrong: " + rcvVer + " vs my " + Hub.VERSION;
+            } else {
+                String nonce = Hub.capabilityValue(rcvVer, Hub.CAPABILITY_GCM);
+                if (nonce != null) {
+                    try {
+                        hubNonce = GcmTransport.newNonce();
+                        gcm = GcmTransport.forHub(secretKey, nonce, hubNonce);
+                    } catch (GeneralSecurityException gse) {
+                        rejection = "No " + Hub.CAPABILITY_GCM + " encryption: " + gse.getMessage();
+                    }
+                } else if (gcmRequired) {
+                    rejection = "Hub requires " + Hub.CAPABILITY_GCM + " encryption (-e gcm)";
+                }
+            }
+            if (rejection != null){
+                Logger.log(Level.WARNING, rejection);
+                Metrics.handshakeFailed(clientFraming == null ? Metrics.HANDSHAKE_VERSION : Metrics.HANDSHAKE_ENCRYPTION);
+                sendMessage(new Message(message.userName, message.messageType, rejection, message.messageId));
+                closeAfterFlush();
+                return;
+            }
+            Logger.log(Level.FINE, "  -- Sends version " + rcvVer);
+            Message ack = Message.createAckMessage(message);
+            if (hubNonce != null) ack.messageBody = GcmTransport.ackBody(hubNonce);
+            sendMessage(ack);
+            // everything after the ACK, in both directions; the client waits for the ACK,
+            // so nothing compressed or encrypted has been read yet
+            boolean compress = Hub.hasCapability(rcvVer, Hub.CAPABILITY_DEFLATE);
+            synchronized (outQueue) {
+                framing = clientFraming;
+                if (compress) deflater = new Deflater();
+                if (gcm != null) gcmOut = gcm[0];
+            }
+            if (compress) {
+                inflater = new Inflater();
+                Logger.log(Level.FINE, "  -- Compression on");
+            }
+            if (gcm != null) {
+                gcmIn = gcm[1];
+                recordBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+                Logger.log(Level.FINE, "  -- AES/GCM on");
+            }
+            state = State.CONNECT;
+            break;
+
+        case CONNECT:
+            Logger.log(Level.INFO, "  -- Connect: '" + message.toStructuredString() + "'");
+            sendMessage(Message.createAckMessage(message));
+            userName = message.messageBody;
+            Logger.log(Level.INFO, "  -- User: '" + userName + "'");
+            if (!Hub.claimUserName(userName, this)){
+                Logger.log(Level.WARNING, "user '" + userName + "' already known, rejecting connection.");
+                Metrics.handshakeFailed(Metrics.HANDSHAKE_USER);
+                userName = "";
+                closeAfterFlush();
+                return;
+            }
+            state = State.HEARTBEAT;
+            break;
+
+        case HEARTBEAT:
+            Logger.log(Level.FINE, "  -- Heartbeat: '" + message.toStructuredString() + "'");
+            sendMessage(Message.createAckMessage(message));
+            try {
+                heartbeatInterval = Integer.parseInt(message.messageBody);
+                Logger.log(Level.FINE, "  -- setting heartbeat interval to "+heartbeatInterval+"ms");
+            } catch (NumberFormatException nfe){
+                Logger.log(Level.WARNING, "Heartbeat interval is not a number: " + message.messageBody);
+                Metrics.handshakeFailed(Metrics.HANDSHAKE_PROTOCOL);
+                closeAfterFlush();
+                return;
+            }
+            state = State.ESTABLISHED;
+            Hub.established(this);
+            break;
+
+        case ESTABLISHED:
+            handleMessage(message);
+            break;
+        }
+    }
+
+    /**
+     * Queue a message for writing by the event loop, ahead of pending broadcasts.
+     * Safe to call from any thread.
+     */
+    void sendMessage (Message msg) throws IOException {
+        if (closed.get()) throw new IOException("Connection closed: " + userName);
+        synchronized (outQueue) {
+            queueBytes(msg);
+        }
+        if (Logger.isLoggable(Level.FINEST)) Logger.log (Level.FINEST, "Send message: " + msg.toStructuredString());
+        loop.scheduleWrite(this);
+    }
+
+    /** Queue several messages as one buffer (and one cipher update). */
+    @Override
+    void sendMessages (List<Message> msgs) throws IOException {
+        if (closed.get()) throw new IOException("Connection closed: " + userName);
+        synchronized (outQueue) {
+            byte[] bytes = framing.encode(msgs);
+            if (deflater != null) bytes = deflate(bytes);
+            if (gcmOut != null) bytes = gcmOut.seal(bytes);
+            if (useEncryption) bytes = encCipher.update(bytes);
+            outQueue.add(ByteBuffer.wrap(bytes));
+        }
+        if (Logger.isLoggable(Level.FINEST)) Logger.log (Level.FINEST, "Send %d messages", msgs.size());
+        loop.scheduleWrite(this);
+    }
+
+    @Override
+    void broadcastQueued (){
+        loop.scheduleWrite(this);
+    }
+
+    // must be called synchronized on outQueue: the cipher is applied in queue order
+    private void queueBytes (Message msg) throws IOException {
+        // shared with the other connections; deflate and the ciphers write to a new array, wrap() doesn't copy
+        byte[] bytes = framing.encode(msg);
+        if (deflater != null) bytes = deflate(bytes);
+        if (gcmOut != null) bytes = gcmOut.seal(bytes);
+        if (useEncryption) bytes = encCipher.update(bytes);
+        outQueue.add(ByteBuffer.wrap(bytes));
+    }
+
+    // must be called synchronized on outQueue; sync flush, so the client can decode everything queued
+    private byte[] deflate (byte[] bytes){
+        deflater.setInput(bytes);
+        byte[] out = new byte[bytes.length / 2 + 64];
+        int n = 0;
+        while (true) {
+            n += deflater.deflate(out, n, out.length - n, Deflater.SYNC_FLUSH);
+            // a full buffer may mean there is more
+            if (n < out.length) break;
+            out = Arrays.copyOf(out, out.length * 2);
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * Write queued data until the socket buffer is full, then take the next
+     * broadcasts from {@link #outbound} only when everything before has been
+     * written. Runs on the event loop thread.
+     */
+    void onWritable (){
+        if (closed.get()) {
+            release();
+            return;
+        }
+        boolean close = false;
+        try {
+            synchronized (outQueue) {
+                while (true) {
+                    if (outQueue.isEmpty()) {
+                        Message broadcast = outbound.poll();
+                        if (broadcast == null) break;
+                        queueBytes(broadcast);
+                    }
+                    ByteBuffer b = outQueue.peek();
+                    channel.write(b);
+                    if (b.hasRemaining()) break;
+                    outQueue.poll();
+                }
+                if (outQueue.isEmpty()) {
+                    key.interestOps(SelectionKey.OP_READ);
+                    close = closeAfterFlush;
+                } else {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            }
+        } catch (IOException ioe) {
+            Logger.log(Level.WARNING, "closed, remove myself from Hub " + this.toString(), ioe);
+            close = true;
+        }
+        if (close) shutdown();
+    }
+
+    private void closeAfterFlush (){
+        synchronized (outQueue) {
+            closeAfterFlush = true;
+        }
+        loop.scheduleWrite(this);
+    }
+
+    /** Close the connection and remove it from the Hub; safe to call from any thread, and more than once. */
+    void shutdown (){
+        if (closed.compareAndSet(false, true)) {
+            Logger.log(Level.INFO, "Client has finished: " + userName);
+            hub.removeClient(this);
+            outbound.close();
+            liveness.cancel();
+        }
+        // the loop may be using the key right now
+        if (Thread.currentThread() == loop) {
+            release();
+        } else {
+            loop.scheduleWrite(this);
+        }
+    }
+
+    // on the event loop thread, once closed; does nothing the second time
+    private void release (){
+        if (key != null) key.cancel();
+        synchronized (outQueue) {
+            if (deflater != null) {
+                if (Logger.isLoggable(Level.FINE)) {
+                    Logger.log(Level.FINE, "Compression of %s: sent %d -> %d bytes, received %d <- %d bytes",
+                            userName, deflater.getBytesRead(), deflater.getBytesWritten(),
+                            inflater.getBytesWritten(), inflater.getBytesRead());
+                }
+                deflater.end();
+                deflater = null;
+            }
+        }
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Logger.log (Level.FINE, "Client shutdown: " + e);
+        }
+    }
+
+}
@@ -0,0 +1,213 @@
+package tc;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+
+/**
+ * Hub server mode in which a few event loop threads serve all client
+ * connections, instead of one {@link Client} thread (plus writer thread)
+ * per connection. This thread only accepts connections and hands them to the
+ * event loops round robin.
+ *
+ * @author ok
+ *
+ */
+class NioServer extends Hub.Listener {
+
+    private static final int MAX_EVENT_LOOPS = 4;
+
+    private ServerSocketChannel serverChannel;
+    private final int port;
+    private final Hub hub;
+    private final Options options;
+    private final EventLoop[] loops;
+    private int nextLoop;
+    private volatile boolean closed = false;
+
+    NioServer (int port, Hub hub, Options options) {
+        this.port = port;
+        this.hub = hub;
+        this.options = options;
+        this.setName("Hub");
+        try {
+            Logger.log(Level.FINE, "Registering server socket channel on port " + port);
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().bind(new InetSocketAddress(port));
+
+            int n = Math.max(1, Math.min(MAX_EVENT_LOOPS, Runtime.getRuntime().availableProcessors()));
+            loops = new EventLoop[n];
+            for (int i = 0; i < n; i++) {
+                loops[i] = new EventLoop(i);
+            }
+        } catch (IOException ioe){
+            Logger.log(Level.SEVERE, "Could not listen on port: "+port, ioe);
+            throw new RuntimeException(ioe);
+        }
+        Logger.log(Level.INFO, "NIO hub with " + loops.length + " event loop(s)");
+    }
+
+    @Override
+    public void run() {
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+        while (!closed) {
+            SocketChannel channel = null;
+            try {
+                Logger.log(Level.FINE, "Listening");
+                channel = serverChannel.accept();
+                if (!Hub.isIpAddressAllowed(channel.socket().getInetAddress().getHostAddress())){
+                    channel.close();
+                } else {
+                    EventLoop loop = loops[nextLoop];
+                    nextLoop = (nextLoop + 1) % loops.length;
+                    loop.register(channel);
+                }
+            } catch (AsynchronousCloseException ace){
+                Logger.log(Level.FINE, "Server channel closed because of shutdown");
+                return;
+            } catch (IOException e) {
+                Logger.log(Level.SEVERE, "Accept failed: "+port+ "  ", e);
+                try {
+                    if (channel != null) channel.close();
+                } catch (IOException cse) {
+                    Logger.log(Level.FINE, "While closing rejected channel: " + cse);
+                }
+            }
+        }
+    }
+
+    @Override
+    void shutdown(){
+        closed = true;
+        try {
+            Logger.log(Level.FINE, "Closing server socket channel");
+            serverChannel.close();
+        } catch (IOException ioe){
+            Logger.log(Level.SEVERE, "Shutdown not successful: ", ioe);
+        }
+        for (EventLoop loop : loops) {
+            loop.shutdown();
+        }
+    }
+
+    /**
+     * One selector thread: reads, runs handshakes and writes queued data for
+     * the connections registered with it. Their timeouts are on the
+     * {@link TimingWheel} of all connections.
+     */
+    class EventLoop extends Thread {
+        private final Selector selector;
+        private final Queue<SocketChannel> newChannels = new ConcurrentLinkedQueue<SocketChannel>();
+        private final Queue<NioConnection> pendingWrites = new ConcurrentLinkedQueue<NioConnection>();
+        private volatile boolean running = true;
+
+        EventLoop (int i) throws IOException {
+            setName("NioLoop-" + i);
+            setDaemon(true);
+            selector = Selector.open();
+        }
+
+        void register (SocketChannel channel){
+            newChannels.add(channel);
+            selector.wakeup();
+        }
+
+        /** Have the loop write the connection's queued data; safe to call from any thread. */
+        void scheduleWrite (NioConnection connection){
+            pendingWrites.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run (){
+            while (running) {
+                try {
+                    selector.select();
+                } catch (IOException ioe) {
+                    Logger.log(Level.SEVERE, "Select failed", ioe);
+                    continue;
+                }
+                if (!running) break;
+
+                registerNewChannels();
+
+                NioConnection pending;
+                while ((pending = pendingWrites.poll()) != null) {
+                    try {
+                        pending.onWritable();
+                    } catch (RuntimeException re) {
+                        failed(pending, re);
+                    }
+                }
+
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) connection.onReadable();
+                        if (key.isValid() && key.isWritable()) connection.onWritable();
+                    } catch (RuntimeException re) {
+                        failed(connection, re);
+                    }
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                ((NioConnection) key.attachment()).shutdown();
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                Logger.log(Level.FINE, "While closing selector: " + e);
+            }
+        }
+
+        // one bad connection must not stop the loop for all the others
+        private void failed (NioConnection connection, RuntimeException re){
+            Logger.log(Level.SEVERE, "Closing " + connection + " after an unexpected error", re);
+            try {
+                connection.shutdown();
+            } catch (RuntimeException e) {
+                Logger.log(Level.SEVERE, "While closing " + connection, e);
+            }
+        }
+
+        private void registerNewChannels (){
+            SocketChannel channel;
+            while ((channel = newChannels.poll()) != null) {
+                try {
+                    channel.configureBlocking(false);
+                    NioConnection connection = new NioConnection(channel, this, hub, options);
+                    connection.setKey(channel.register(selector, SelectionKey.OP_READ, connection));
+                } catch (ClosedChannelException cce) {
+                    Logger.log(Level.FINE, "Channel closed before registering");
+                } catch (IOException ioe) {
+                    Logger.log(Level.WARNING, "Could not register channel: " + ioe);
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        Logger.log(Level.FINE, "While closing channel: " + e);
+                    }
+                }
+            }
+        }
+
+        void shutdown (){
+            running = false;
+            selector.wakeup();
+        }
+    }
+
+}
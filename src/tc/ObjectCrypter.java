@@ -7,8 +7,12 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.security.InvalidAlgorithmParameterException;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -16,16 +20,57 @@ import javax.crypto.IllegalBlockSizeException;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.ShortBufferException;
 import javax.crypto.spec.DESKeySpec;
+import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 
 public class ObjectCrypter {
 
-private Cipher deCipher;
-private Cipher enCipher;
+// prefix of payloads in the current format: AES/GCM over the UTF-8 bytes, Base64 encoded as
+// nonce + ciphertext + tag; payloads without prefix are in the legacy format (see encryptStringV1)
+static final String V2 = "v2:";
+private static final int GCM_NONCE_LENGTH = 12;
+private static final int GCM_TAG_BITS = 128;
+
+private static final String DES = "DES/CBC/PKCS5Padding";
+private static final String GCM = "AES/GCM/NoPadding";
+
+// one instance is used by the user input thread and the receive thread (and the Swing thread),
+// a Cipher is not thread-safe: every thread has its own; with the same key every time, the
+// provider keeps the key schedule and init() only sets the IV
+private final ThreadLocal<Cipher> deCipher = new CipherCache(DES);
+private final ThreadLocal<Cipher> enCipher = new CipherCache(DES);
 private SecretKeySpec key;
 private IvParameterSpec ivSpec;
+// null if the JRE has no AES/GCM; then only the legacy format is written
+private ThreadLocal<Cipher> gcmEnCipher;
+private ThreadLocal<Cipher> gcmDeCipher;
+private SecretKeySpec aesKey;
+// GCM nonces: random prefix of this instance, then a message counter; new prefix when the counter wraps
+private final SecureRandom random = new SecureRandom();
+// both synchronized on random
+private int nonceCounter;
+private long noncePrefix;
+
+/** Lazily creates one Cipher per thread. */
+private static class CipherCache extends ThreadLocal<Cipher> {
+    private final String transformation;
+
+    CipherCache (String transformation){
+        this.transformation = transformation;
+    }
+
+    @Override
+    protected Cipher initialValue (){
+        try {
+            return Cipher.getInstance(transformation);
+        } catch (GeneralSecurityException e) {
+            // checked in the constructor
+            throw new IllegalStateException("No cipher " + transformation, e);
+        }
+    }
+}
 
 /** 
  * From: http://stackoverflow.com/questions/1205135/how-to-encrypt-string-in-java
@@ -49,8 +94,7 @@ public ObjectCrypter(byte[] keyBytes,   byte[] ivBytes) {
     try {
          DESKeySpec dkey = new  DESKeySpec(keyBytes);
           key = new SecretKeySpec(dkey.getKey(), "DES");
-         deCipher = Cipher.getInstance("DES/CBC/PKCS5Padding");
-         enCipher = Cipher.getInstance("DES/CBC/PKCS5Padding");
+         Cipher.getInstance(DES);
     } catch (NoSuchAlgorithmException e) {
         // TODO Auto-generated catch block
         e.printStackTrace();
@@ -61,19 +105,35 @@ public ObjectCrypter(byte[] keyBytes,   byte[] ivBytes) {
         // TODO Auto-generated catch block
         e.printStackTrace();
     }
+    try {
+        // from the same shared key, so clients need no new option
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(keyBytes);
+        aesKey = new SecretKeySpec(Arrays.copyOf(digest, 16), "AES");
+        Cipher.getInstance(GCM);
+        gcmEnCipher = new CipherCache(GCM);
+        gcmDeCipher = new CipherCache(GCM);
+        synchronized (random) {
+            noncePrefix = random.nextLong();
+        }
+    } catch (GeneralSecurityException e) {
+        Logger.log(Level.WARNING, "No AES/GCM, payloads are encrypted in the legacy format", e);
+        gcmEnCipher = null;
+        gcmDeCipher = null;
+    }
 }
 
 /* Returns encrypted object or empty array if obj is null.
  */
 public byte[] encrypt(Object obj) throws InvalidKeyException, InvalidAlgorithmParameterException, IOException, IllegalBlockSizeException, ShortBufferException, BadPaddingException {
     byte[] input = convertToByteArray(obj);
-    enCipher.init(Cipher.ENCRYPT_MODE, key, ivSpec);
+    Cipher cipher = enCipher.get();
+    cipher.init(Cipher.ENCRYPT_MODE, key, ivSpec);
 
     if (obj == null){
         return new byte[0];
     }
 
-    return enCipher.doFinal(input);
+    return cipher.doFinal(input);
 
 
 
@@ -94,15 +154,74 @@ public Object decrypt( byte[]  encrypted) throws InvalidKeyException, InvalidAlg
     if (encrypted == null  || encrypted.length == 0){
         return null;
     }
-    deCipher.init(Cipher.DECRYPT_MODE, key, ivSpec);
+    Cipher cipher = deCipher.get();
+    cipher.init(Cipher.DECRYPT_MODE, key, ivSpec);
 
-    return convertFromByteArray(deCipher.doFinal(encrypted));
+    return convertFromByteArray(cipher.doFinal(encrypted));
 
 }
 
 
 
+/** Encrypt in the current format, see {@link #V2}; "" on error. */
 public String encryptString (String s) {
+    if (gcmEnCipher == null) return encryptStringV1(s);
+    try {
+        Cipher cipher = gcmEnCipher.get();
+        byte[] nonce = nextNonce();
+        cipher.init(Cipher.ENCRYPT_MODE, aesKey, new GCMParameterSpec(GCM_TAG_BITS, nonce));
+        byte[] plain = s.getBytes(Framing.UTF8);
+        byte[] out = new byte[GCM_NONCE_LENGTH + cipher.getOutputSize(plain.length)];
+        System.arraycopy(nonce, 0, out, 0, GCM_NONCE_LENGTH);
+        int length = GCM_NONCE_LENGTH + cipher.doFinal(plain, 0, plain.length, out, GCM_NONCE_LENGTH);
+        return V2 + Base64.encode(length == out.length ? out : Arrays.copyOf(out, length));
+    } catch (GeneralSecurityException e){
+        Logger.log(Level.WARNING, "Encryption error ", e);
+        return "";
+    }
+}
+
+/** Decrypt a payload in the current or the legacy format; "" on error. */
+public String decryptString (String s)  {
+    if (!s.startsWith(V2)) return decryptStringV1(s);
+    if (gcmDeCipher == null) {
+        Logger.log(Level.WARNING, "Can't decrypt, no AES/GCM in this JRE");
+        return "";
+    }
+    try {
+        byte[] b = Base64.decode(s.substring(V2.length()));
+        if (b.length < GCM_NONCE_LENGTH + GCM_TAG_BITS / 8) throw new IllegalArgumentException("Payload too short");
+        Cipher cipher = gcmDeCipher.get();
+        cipher.init(Cipher.DECRYPT_MODE, aesKey, new GCMParameterSpec(GCM_TAG_BITS, b, 0, GCM_NONCE_LENGTH));
+        return new String(cipher.doFinal(b, GCM_NONCE_LENGTH, b.length - GCM_NONCE_LENGTH), Framing.UTF8);
+    } catch (Exception e){
+        // also broken Base64
+        Logger.log(Level.WARNING, "Decryption error ", e);
+        return "";
+    }
+}
+
+// a nonce must never be used twice with the same key: 8 random bytes (other clients have the
+// same key) and a 4 byte counter, much cheaper than 12 random bytes per message
+private byte[] nextNonce (){
+    long prefix;
+    int n;
+    synchronized (random) {
+        prefix = noncePrefix;
+        n = nonceCounter++;
+        if (nonceCounter == 0) {
+            // wrapped, the next one would repeat
+            noncePrefix = random.nextLong();
+        }
+    }
+    byte[] nonce = new byte[GCM_NONCE_LENGTH];
+    for (int i = 0; i < 8; i++) nonce[i] = (byte) (prefix >>> (56 - 8 * i));
+    for (int i = 0; i < 4; i++) nonce[8 + i] = (byte) (n >>> (24 - 8 * i));
+    return nonce;
+}
+
+/** The legacy format: a serialised String, DES encrypted, as hex bytes separated by spaces. */
+String encryptStringV1 (String s) {
     StringBuilder sb = new StringBuilder();
     byte[] b = null;
     try {
@@ -118,7 +237,7 @@ public String encryptString (String s) {
     return sb.toString();
 }
 
-public String decryptString (String s)  {
+String decryptStringV1 (String s)  {
     String[] sa = s.split(" ");
     byte[] b = new byte[sa.length];
     for (int i=0; i<b.length; i++){
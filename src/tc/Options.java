@@ -12,6 +12,13 @@ import java.util.logging.Level;
 // if options logging is to be shown, "-l FINE" must be the FIRST option!
 public final class Options {
     public static final byte EOL = 0;
+    public static final String HUB_MODE_THREADS = "threads";
+    public static final String HUB_MODE_VTHREADS = "vthreads";
+    public static final String HUB_MODE_NIO = "nio";
+    public static final String WIRE_FORMAT_TEXT = "text";
+    public static final String WIRE_FORMAT_BINARY = "binary";
+    public static final String CIPHER_RC4 = "rc4";
+    public static final String CIPHER_GCM = "gcm";
 
     public Integer optPort = 64321;
     public String optHost;
@@ -25,9 +32,19 @@ public final class Options {
     public float optFontSize = 11.0f;
     public File optLogfile;
     public File optJournalFile;
+    public File optDraftsFile;
+    public Journal.Durability optJournalDurability = Journal.Durability.BUFFERED;
     public Boolean optPopups = true;
+    public Boolean optCompression = false;
+    public Boolean optTrace = false;
     public byte[] optSecretKey;
     public Integer optHeartbeat = 30*1000;
+    public String optHubMode = HUB_MODE_THREADS;
+    public String optWireFormat = WIRE_FORMAT_TEXT;
+    public String optCipher = CIPHER_RC4;
+    public Integer optOutboundQueueSize = 1000;
+    public OutboundQueue.OverflowPolicy optOverflowPolicy = OutboundQueue.OverflowPolicy.DISCONNECT;
+    public Integer optMetricsPort;
     public boolean unknownOptionFound = false;
 
     public Options (String[] args) {
@@ -56,6 +73,12 @@ public final class Options {
                 }  else if (opt.startsWith("-nopo")) {
                     optPopups = false;
                     Logger.log (Level.CONFIG, "Disabling popups");
+                } else if (opt.startsWith("-z")) {
+                    optCompression = true;
+                    Logger.log (Level.CONFIG, "Enabling compression.");
+                } else if (opt.startsWith("-t")) {
+                    optTrace = true;
+                    Logger.log (Level.CONFIG, "Enabling trace stamps.");
                 } else {
                     
                     // Now options with argument
@@ -189,9 +212,74 @@ public final class Options {
                             System.err.println("Could not open log file for writing: " + parm);
                             optLogfile = null;
                         }
+                    } else if (opt.startsWith("-jd")) {
+                        try {
+                            optJournalDurability = Journal.parseDurability(parm);
+                        } catch (IllegalArgumentException iae){
+                            Logger.log (Level.SEVERE, "Unknown journal durability: " + parm);
+                            unknownOptionFound = true;
+                            break;
+                        }
+                        Logger.log (Level.CONFIG, "Setting journal durability to " + optJournalDurability);
                     } else if (opt.startsWith("-j")) {
                        optJournalFile = new File(parm);
                        Logger.log (Level.CONFIG, "Setting journal file to " + parm);
+                    } else if (opt.startsWith("-d")) {
+                       optDraftsFile = new File(parm);
+                       Logger.log (Level.CONFIG, "Setting drafts file to " + parm);
+                    } else if (opt.startsWith("-q")) {
+                        try {
+                            optOutboundQueueSize = Integer.parseInt(parm);
+                        } catch (NumberFormatException nfe){
+                            Logger.log(Level.SEVERE, "Could not parse outbound queue size "+parm);
+                            throw new RuntimeException("Could not parse outbound queue size "+parm);
+                        }
+                        Logger.log (Level.CONFIG, "Setting outbound queue size to " + parm + " messages");
+                    } else if (opt.startsWith("-s")) {
+                        try {
+                            optMetricsPort = Integer.parseInt(parm);
+                        } catch (NumberFormatException nfe){
+                            Logger.log(Level.SEVERE, "Could not parse metrics port "+parm);
+                            throw new RuntimeException("Could not parse metrics port "+parm);
+                        }
+                        Logger.log (Level.CONFIG, "Setting metrics port to " + parm);
+                    } else if (opt.startsWith("-o")) {
+                        try {
+                            optOverflowPolicy = OutboundQueue.parsePolicy(parm);
+                        } catch (IllegalArgumentException iae){
+                            Logger.log (Level.SEVERE, "Unknown overflow policy: " + parm);
+                            unknownOptionFound = true;
+                            break;
+                        }
+                        Logger.log (Level.CONFIG, "Setting outbound queue overflow policy to " + optOverflowPolicy);
+                    } else if (opt.startsWith("-m")) {
+                        if (HUB_MODE_THREADS.equals(parm) || HUB_MODE_VTHREADS.equals(parm)
+                                || HUB_MODE_NIO.equals(parm)) {
+                            optHubMode = parm;
+                            Logger.log (Level.CONFIG, "Setting hub mode to " + parm);
+                        } else {
+                            Logger.log (Level.SEVERE, "Unknown hub mode: " + parm);
+                            unknownOptionFound = true;
+                            break;
+                        }
+                    } else if (opt.startsWith("-w")) {
+                        if (WIRE_FORMAT_TEXT.equals(parm) || WIRE_FORMAT_BINARY.equals(parm)) {
+                            optWireFormat = parm;
+                            Logger.log (Level.CONFIG, "Setting wire format to " + parm);
+                        } else {
+                            Logger.log (Level.SEVERE, "Unknown wire format: " + parm);
+                            unknownOptionFound = true;
+                            break;
+                        }
+                    } else if (opt.startsWith("-e")) {
+                        if (CIPHER_RC4.equals(parm) || CIPHER_GCM.equals(parm)) {
+                            optCipher = parm;
+                            Logger.log (Level.CONFIG, "Setting cipher to " + parm);
+                        } else {
+                            Logger.log (Level.SEVERE, "Unknown cipher: " + parm);
+                            unknownOptionFound = true;
+                            break;
+                        }
                     } else {
                         Logger.log (Level.WARNING, "Unknown option: " + opt);
                         unknownOptionFound = true;
@@ -212,14 +300,30 @@ public final class Options {
         System.out.println("  -help this message");
         System.out.println("  -g <log file>   (should be first command line option; '-' for stdout (default))");
         System.out.println("  -j <journal file>   (only for Hub; logs all user messages)");
+        System.out.println("  -jd [fsync|interval|buffered]  (only for Hub; fsync the journal after every write, once a");
+        System.out.println("                             second, or never (default buffered))");
+        System.out.println("  -m [threads|vthreads|nio]  (only for Hub; one thread per client (default), one virtual thread");
+        System.out.println("                             per client (Java 21+) or few event loop threads)");
         System.out.println("  -l [FINEST|FINER|FINE|INFO|WARNING|SEVERE]  -> log level, should be first or second option");
+        System.out.println("  -q <messages>       (only for Hub; outbound queue size per client, default 1000)");
+        System.out.println("  -o [drop|disconnect|spill]  (only for Hub; what to do when a client's outbound queue is full,");
+        System.out.println("                             default disconnect)");
+        System.out.println("  -s <metrics port>   (only for Hub; serves http://localhost:<port>/metrics)");
         System.out.println("  -h <server host>    (only for TextUI or SwingUI)");
         System.out.println("  -p <server port, default " + optPort);
         System.out.println("  -u <user name>      (only for TextUI or SwingUI)");
         System.out.println("  -r <local port>     (only for TextUI or SwingUI)");
+        System.out.println("  -w [text|binary]    (only for TextUI or SwingUI; wire format, default text;");
+        System.out.println("                             binary needs a hub of version " + Hub.VERSION_BINARY + ")");
+        System.out.println("  -d <drafts file>    (only for TextUI or SwingUI; keeps unsent messages, also across restarts)");
         System.out.println("  -c | -noc   -> use|disable encryption");
-        System.out.println("  -pc | -nopc -> use|disable payload encryption");
+        System.out.println("  -e [rc4|gcm]        (cipher of the encryption, default rc4; gcm: AES/GCM with a key per");
+        System.out.println("                             connection, Java 8+; must be the same for hub and clients)");
+        System.out.println("  -pc | -nopc -> use|disable payload encryption (AES/GCM, Java 8+; older DES payloads can still be read)");
         System.out.println("  -nopo       -> disable popup balloons");
+        System.out.println("  -z          -> compress the connection (only for TextUI or SwingUI; Java 7+)");
+        System.out.println("  -t          -> trace stamps in user messages (only for TextUI or SwingUI with -w binary;");
+        System.out.println("                             latency of every hop, see STATS)");
         System.out.println("  -i <ip address[,ip address]>  -> allowed ip addresses");
         System.out.println("  -a <minutes>   -> how many minutes' worth of archive to request (default 30)");
         System.out.println("  -b <seconds>   -> heartbeat interval (default 30 seconds)");
@@ -232,6 +336,7 @@ public final class Options {
         System.out.println("         java -jar tc.jar           -> same as tc.Hub");
         System.out.println("         java -Djava.awt.headless=true  -> if no System Tray notification wished");
         System.out.println("         java -cp tc.jar tc.Hub -i 192.168,10.,172.16.  -> only accept local ip addresses");
+        System.out.println("         java -cp tc.jar tc.Hub -m nio  -> serve all clients from a few event loop threads (many users)");
         
     }
 
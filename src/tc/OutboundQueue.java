@@ -0,0 +1,212 @@
+package tc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+
+/**
+ * Bounded queue of broadcast messages waiting to be written to one client.
+ * The Hub only ever offers to it, so a slow client can't hold up the fan-out
+ * to the others; what happens when the queue is full is decided by the
+ * {@link OverflowPolicy}.
+ *
+ * @author ok
+ *
+ */
+class OutboundQueue {
+
+    enum OverflowPolicy {
+        /** discard the new message */
+        DROP,
+        /** close the connection; the client resynchronises from the archive when it reconnects */
+        DISCONNECT,
+        /** append to a temporary file, which is written out once the queue drains */
+        SPILL
+    }
+
+    // hub wide totals
+    static final AtomicLong totalDropped = new AtomicLong();
+    static final AtomicLong totalSpilled = new AtomicLong();
+    static final AtomicLong totalDisconnects = new AtomicLong();
+
+    // for logging; the user name of a connection is only known after the handshake
+    private final Object owner;
+    private final int capacity;
+    private final OverflowPolicy policy;
+
+    // all access must be synchronized on this
+    private final Deque<Message> queue = new ArrayDeque<Message>();
+    private boolean closed;
+    private long enqueued;
+    private long taken;
+    private long dropped;
+    private long spilled;
+    private int maxDepth;
+
+    // spilled messages not yet read back; order is kept by not queueing in memory while > 0.
+    // Each is its hubNanos and binary frame, which keeps the sequence number and the trace stamps
+    private int spillCount;
+    private File spillFile;
+    private RandomAccessFile spill;
+    private long spillReadPos;
+    private long spillWritePos;
+
+    OutboundQueue (Object owner, int capacity, OverflowPolicy policy){
+        this.owner = owner;
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * Add a message without blocking.
+     * @return false if the queue is full and the policy is to disconnect
+     */
+    synchronized boolean offer (Message msg){
+        if (closed) return true;
+        if (spillCount > 0 || queue.size() >= capacity) {
+            switch (policy) {
+            case DROP:
+                dropped++;
+                totalDropped.incrementAndGet();
+                Logger.log(Level.FINE, "Outbound queue of " + owner + " full, dropping " + msg.messageId);
+                return true;
+            case DISCONNECT:
+                totalDisconnects.incrementAndGet();
+                return false;
+            case SPILL:
+                if (!spill(msg)) {
+                    totalDisconnects.incrementAndGet();
+                    return false;
+                }
+                break;
+            }
+        } else {
+            queue.add(msg);
+            maxDepth = Math.max(maxDepth, queue.size());
+        }
+        enqueued++;
+        notifyAll();
+        return true;
+    }
+
+    /** Next message, or null if there is none right now. */
+    synchronized Message poll (){
+        Message msg = queue.poll();
+        if (msg == null && spillCount > 0) {
+            msg = unspill();
+        }
+        if (msg != null) {
+            taken++;
+            if (msg.hubNanos != 0) Metrics.fanOut.record((System.nanoTime() - msg.hubNanos) / 1000);
+        }
+        return msg;
+    }
+
+    /** Wait for the next message; returns null once the queue is closed. */
+    synchronized Message take () throws InterruptedException {
+        while (!closed && queue.isEmpty() && spillCount == 0) {
+            wait();
+        }
+        if (closed) return null;
+        return poll();
+    }
+
+    synchronized int size (){
+        return queue.size() + spillCount;
+    }
+
+    /** Release waiting writers and the spill file. */
+    synchronized void close (){
+        if (closed) return;
+        closed = true;
+        queue.clear();
+        notifyAll();
+        closeSpill();
+        if (enqueued > 0 || dropped > 0) {
+            Logger.log(Level.FINE, "Outbound queue of " + owner + ": " + enqueued + " queued, " + taken +
+                    " written, " + dropped + " dropped, " + spilled + " spilled, max depth " + maxDepth);
+        }
+    }
+
+    private boolean spill (Message msg){
+        try {
+            if (spill == null) {
+                spillFile = File.createTempFile("tc-spill-", ".tmp");
+                spillFile.deleteOnExit();
+                spill = new RandomAccessFile(spillFile, "rw");
+                Logger.log(Level.INFO, "Outbound queue of " + owner + " full, spilling to " + spillFile);
+            }
+            byte[] bytes = Framing.BINARY.encode(msg);
+            spill.seek(spillWritePos);
+            spill.writeLong(msg.hubNanos);
+            spill.writeInt(bytes.length);
+            spill.write(bytes);
+            spillWritePos = spill.getFilePointer();
+            spillCount++;
+            spilled++;
+            totalSpilled.incrementAndGet();
+            return true;
+        } catch (IOException ioe) {
+            Logger.log(Level.WARNING, "Could not spill message for " + owner, ioe);
+            return false;
+        }
+    }
+
+    private Message unspill (){
+        while (spillCount > 0) {
+            try {
+                spill.seek(spillReadPos);
+                long hubNanos = spill.readLong();
+                byte[] bytes = new byte[spill.readInt()];
+                spill.readFully(bytes);
+                spillReadPos = spill.getFilePointer();
+                spillCount--;
+                if (spillCount == 0) {
+                    // start over at the beginning of the file
+                    spillReadPos = 0;
+                    spillWritePos = 0;
+                    spill.setLength(0);
+                }
+                Message msg = Framing.BINARY.decode(ByteBuffer.wrap(bytes));
+                if (msg == null) throw new IOException("Incomplete spilled frame");
+                msg.hubNanos = hubNanos;
+                return msg;
+            } catch (Message.MessageException me) {
+                Logger.log(Level.WARNING, "Could not read back spilled message for " + owner, me);
+            } catch (IOException ioe) {
+                Logger.log(Level.WARNING, "Could not read spill file for " + owner + ", dropping spilled messages", ioe);
+                dropped += spillCount;
+                totalDropped.addAndGet(spillCount);
+                spillCount = 0;
+                closeSpill();
+            }
+        }
+        return null;
+    }
+
+    private void closeSpill (){
+        if (spill == null) return;
+        try {
+            spill.close();
+        } catch (IOException e) {
+            Logger.log(Level.FINE, "While closing spill file: " + e);
+        }
+        if (!spillFile.delete()) {
+            Logger.log(Level.FINE, "Could not delete spill file " + spillFile);
+        }
+        spill = null;
+        spillFile = null;
+        spillReadPos = 0;
+        spillWritePos = 0;
+    }
+
+    static OverflowPolicy parsePolicy (String s){
+        return OverflowPolicy.valueOf(s.toUpperCase());
+    }
+
+}
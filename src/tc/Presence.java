@@ -0,0 +1,204 @@
+package tc;
+
+import static tc.Message.MessageType;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+
+/**
+ * Who is online, as the Hub tells it. The hub keeps the users in the order
+ * they joined and changes them only when a connection finishes its handshake
+ * or is removed; every change has the next version number.
+ * <p>
+ * A WHOSONLINE request with any body is answered with the list as it always
+ * was, "alice; bob; ", built once per change and shared until the next one.
+ * A request with the body {@link #SUBSCRIBE} is answered with a versioned
+ * snapshot, and from then on every change is pushed to the subscriber. These
+ * have the message id {@link #PUSH_ID}, so that they can't be mistaken for a
+ * plain list, whatever the user names look like:
+ * <pre>
+ *   v&lt;version&gt;=alice; bob;    snapshot
+ *   v&lt;version&gt;+carol          carol has joined
+ *   v&lt;version&gt;-alice          alice has left
+ * </pre>
+ * Pushes go through the outbound queue like broadcasts. A client that sees a
+ * version missing (a push dropped from a full queue) subscribes again. An
+ * older hub answers SUBSCRIBE with the plain list; the client keeps asking
+ * then.
+ *
+ * @author ok
+ *
+ */
+final class Presence {
+
+    static final String SUBSCRIBE = "SUBSCRIBE";
+    // message id of snapshots and pushes; generated ids are hex digits
+    static final String PUSH_ID = "presence";
+    private static final char VERSION = 'v';
+    private static final char SNAPSHOT = '=';
+    private static final char JOINED = '+';
+    private static final char LEFT = '-';
+    private static final String SEPARATOR = "; ";
+
+    // user name -> connection, in the order of joining
+    private final Map<String, Connection> online = new LinkedHashMap<String, Connection>();
+    private final Set<Connection> subscribers = new LinkedHashSet<Connection>();
+    private long version;
+    // the list of the current version, null until asked for
+    private volatile String list;
+
+    /** A connection has finished its handshake. */
+    void joined (Connection c){
+        List<Connection> slow;
+        synchronized (this) {
+            online.put(c.userName, c);
+            slow = changed(c.userName, JOINED);
+        }
+        disconnect(slow);
+    }
+
+    /** A connection has been removed; it may never have joined. */
+    void left (Connection c){
+        List<Connection> slow = null;
+        synchronized (this) {
+            subscribers.remove(c);
+            // the name may already belong to a new connection of the same user
+            if (online.get(c.userName) == c) {
+                online.remove(c.userName);
+                slow = changed(c.userName, LEFT);
+            }
+        }
+        disconnect(slow);
+    }
+
+    /** Send the current snapshot to a connection, and every change after it. */
+    void subscribe (Connection c){
+        boolean full;
+        synchronized (this) {
+            // removed in the meantime: left() has been or will be called, don't add it after that
+            if (Hub.clients.get(c.userName) != c) return;
+            subscribers.add(c);
+            full = !c.queue(new Message(c.userName, MessageType.WHOSONLINE,
+                    String.valueOf(VERSION) + version + SNAPSHOT + list(), PUSH_ID));
+        }
+        if (full) c.disconnectSlowClient();
+    }
+
+    /** The online users as answered to a WHOSONLINE request: "alice; bob; ". */
+    String list (){
+        String l = list;
+        if (l != null) return l;
+        synchronized (this) {
+            if (list == null) {
+                StringBuilder sb = new StringBuilder(online.size() * 16);
+                for (String userName : online.keySet()) {
+                    sb.append(userName).append(SEPARATOR);
+                }
+                list = sb.toString();
+            }
+            return list;
+        }
+    }
+
+    // with the lock held: the next version, pushed to the subscribers; returns those whose queue was full
+    private List<Connection> changed (String userName, char change){
+        version++;
+        list = null;
+        if (subscribers.isEmpty()) return null;
+        // one message for all, encoded once
+        Message msg = new Message(userName, MessageType.WHOSONLINE,
+                String.valueOf(VERSION) + version + change + userName, PUSH_ID);
+        List<Connection> slow = null;
+        for (Connection c : subscribers) {
+            if (!c.queue(msg)) {
+                if (slow == null) slow = new ArrayList<Connection>();
+                slow.add(c);
+            }
+        }
+        return slow;
+    }
+
+    // outside the lock: removing a connection changes the presence again
+    private static void disconnect (List<Connection> slow){
+        if (slow == null) return;
+        for (Connection c : slow) {
+            c.disconnectSlowClient();
+        }
+    }
+
+
+    /** The users online as a client sees them, from the answers and pushes of the hub. */
+    static final class View {
+        private final Set<String> names = new LinkedHashSet<String>();
+        // of the last snapshot or change, -1 if there is none on this connection
+        private long version = -1;
+
+        /**
+         * Apply a WHOSONLINE message from the hub.
+         * @return false if a change has been missed; subscribe again to get a new snapshot
+         */
+        synchronized boolean apply (Message msg){
+            String body = msg.messageBody;
+            if (!PUSH_ID.equals(msg.messageId)) {
+                // a plain list: the answer to a request, or from a hub that doesn't push
+                setList(body);
+                return true;
+            }
+            int i = 1;
+            if (body.length() > 0 && body.charAt(0) == VERSION) {
+                while (i < body.length() && Character.isDigit(body.charAt(i))) i++;
+            }
+            char change = i > 1 && i < body.length() ? body.charAt(i) : 0;
+            if (change != SNAPSHOT && change != JOINED && change != LEFT) {
+                Logger.log(Level.WARNING, "Unknown presence update: " + body);
+                return true;
+            }
+            long v = Long.parseLong(body.substring(1, i));
+            String rest = body.substring(i + 1);
+            if (change == SNAPSHOT) {
+                setList(rest);
+            } else if (version < 0 || v != version + 1) {
+                version = -1;
+                return false;
+            } else if (change == JOINED) {
+                names.add(rest);
+            } else {
+                names.remove(rest);
+            }
+            version = v;
+            return true;
+        }
+
+        private void setList (String list){
+            names.clear();
+            for (String name : list.split(SEPARATOR)) {
+                if (name.length() > 0) names.add(name);
+            }
+        }
+
+        /** True once the hub pushes the changes on this connection. */
+        synchronized boolean isSubscribed (){
+            return version >= 0;
+        }
+
+        /** A new connection: nothing has been pushed on it yet. */
+        synchronized void reset (){
+            version = -1;
+        }
+
+        /** "alice; bob; ", like the answer to WHOSONLINE. */
+        synchronized String list (){
+            StringBuilder sb = new StringBuilder();
+            for (String name : names) {
+                sb.append(name).append(SEPARATOR);
+            }
+            return sb.toString();
+        }
+    }
+
+}
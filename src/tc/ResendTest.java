@@ -0,0 +1,156 @@
+package tc;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import tc.Message.MessageType;
+
+/**
+ * Checks that a message sent again after a lost ACK reaches the others only
+ * once: a client sends a message and drops the connection before reading the
+ * ACK, reconnects and sends the same message again, as the drafts of TextUI
+ * do. Another client counts the broadcasts of the message, and the archive
+ * must have it once. Each mode runs against a hub in its own child JVM.
+ *
+ * Call as: java -cp tc.jar tc.ResendTest [mode ...]
+ * e.g.     java -cp tc.jar tc.ResendTest threads nio
+ */
+public class ResendTest {
+
+    private static final int BASE_PORT = 64500;
+    private static final int READ_TIMEOUT = 2000;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length > 0 && "-child".equals(args[0])) {
+            runChild(args[1], Integer.parseInt(args[2]));
+            return;
+        }
+
+        List<String> modes = new ArrayList<String>();
+        for (int i = 0; i < args.length; i++) modes.add(args[i]);
+        if (modes.isEmpty()) {
+            modes.add(Options.HUB_MODE_THREADS);
+            modes.add(Options.HUB_MODE_VTHREADS);
+            modes.add(Options.HUB_MODE_NIO);
+        }
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        int port = BASE_PORT;
+        boolean allPassed = true;
+        for (String mode : modes) {
+            ProcessBuilder pb = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    ResendTest.class.getName(), "-child", mode, String.valueOf(port++));
+            pb.redirectErrorStream(true);
+            Process p = pb.start();
+            BufferedReader r = new BufferedReader(new InputStreamReader(p.getInputStream(), "UTF-8"));
+            String line;
+            String lastLine = null;
+            String result = null;
+            while ((line = r.readLine()) != null) {
+                if (line.startsWith("RESULT ")) {
+                    result = line.substring("RESULT ".length());
+                } else if (line.trim().length() > 0) {
+                    lastLine = line;
+                }
+            }
+            p.waitFor();
+            if (result == null) {
+                System.out.println(String.format("%-10s failed: %s", mode, lastLine));
+                allPassed = false;
+            } else {
+                System.out.println(String.format("%-10s %s", mode, result));
+                allPassed &= result.endsWith("passed");
+            }
+        }
+        System.exit(allPassed ? 0 : 1);
+    }
+
+    private static void runChild(String mode, int port) throws Exception {
+        Hub.main(new String[]{"-l", "SEVERE", "-p", String.valueOf(port), "-m", mode, "-noc"});
+        Thread.sleep(500);
+
+        Socket watcher = connect(port, "rtwatch");
+        Socket sender = connect(port, "rtsend");
+        Message msg = new Message("rtsend", MessageType.USERMSG, "once");
+        write(sender, msg);
+        // the ACK is lost with the connection
+        sender.close();
+        Thread.sleep(500);
+
+        sender = connect(port, "rtsend");
+        write(sender, msg);
+        if (!Message.verifyAck(msg, read(sender))) throw new IOException("No ACK of the resent message");
+
+        int broadcast = 0;
+        try {
+            Message received;
+            while ((received = read(watcher)) != null) {
+                if (msg.messageId.equals(received.messageId)) broadcast++;
+            }
+        } catch (SocketTimeoutException ste) {
+            // all there is
+        }
+
+        Message request = new Message("rtsend", MessageType.ARCHIVE, "latest");
+        write(sender, request);
+        int archived = 0;
+        Message received;
+        while ((received = read(sender)) != null && !Message.verifyAck(request, received)) {
+            if (msg.messageId.equals(received.messageId)) archived++;
+        }
+        System.out.println("RESULT broadcast " + broadcast + ", archived " + archived + ": " +
+                (broadcast == 1 && archived == 1 ? "passed" : "FAILED"));
+        System.exit(0);
+    }
+
+    /** A handshaken connection without encryption. */
+    private static Socket connect(int port, String user) throws IOException {
+        Socket s = new Socket("localhost", port);
+        s.setSoTimeout(READ_TIMEOUT);
+        Message[] msgs = new Message[]{
+                new Message(user, MessageType.VERSION, Hub.VERSION),
+                new Message(user, MessageType.CONNECT, user),
+                new Message(user, MessageType.HEARTBEAT, String.valueOf(60*1000))};
+        for (Message msg : msgs) {
+            write(s, msg);
+            if (!Message.verifyAck(msg, read(s))) throw new IOException("Handshake failed at " + msg.messageType);
+        }
+        return s;
+    }
+
+    private static void write(Socket s, Message msg) throws IOException {
+        byte[] text = msg.toStructuredString().getBytes("UTF-8");
+        byte[] bytes = new byte[text.length + 1];
+        System.arraycopy(text, 0, bytes, 0, text.length);
+        bytes[text.length] = Options.EOL;
+        OutputStream os = s.getOutputStream();
+        os.write(bytes);
+        os.flush();
+    }
+
+    /** The next message, or null at the end of the stream. */
+    private static Message read(Socket s) throws IOException {
+        InputStream is = s.getInputStream();
+        ByteArrayOutputStream text = new ByteArrayOutputStream();
+        int c;
+        while ((c = is.read()) != -1 && c != Options.EOL) {
+            text.write(c);
+        }
+        if (c == -1) return null;
+        try {
+            return new Message(text.toString("UTF-8"));
+        } catch (Message.MessageException me) {
+            throw new IOException("Broken message: " + me.getMessage());
+        }
+    }
+
+}
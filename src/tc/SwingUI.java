@@ -21,6 +21,8 @@ import java.util.Locale;
 import java.util.TimeZone;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.logging.Level;
 
 import javax.swing.ImageIcon;
@@ -56,11 +58,14 @@ public class SwingUI extends TextUI {
     private JTextPane conversationPane;
     private StyledDocument conversationDoc;
     private StyledDocument notificationDoc;
+    // who is online, kept up to date by the hub
+    private final Presence.View presence = new Presence.View();
     private JTextArea inputArea;
     private JTextPane notificationField;
     
     private JFrame swingUIFrame;
-    private String newInput;
+    // lines entered in inputArea, taken by the UserInputThread
+    private BlockingQueue<String> newInput = new LinkedBlockingQueue<String>();
     
     // must be static so we can create SwingUI on EDT _and_ use field swingui later to connect
     static SwingUI swingui;
@@ -153,7 +158,7 @@ public class SwingUI extends TextUI {
             public void keyPressed(KeyEvent event) {
               if(event.getKeyCode() == KeyEvent.VK_ENTER && 
                       ((event.getModifiers() & KeyEvent.SHIFT_MASK) != KeyEvent.SHIFT_MASK)) {
-                  newInput = inputArea.getText();
+                  newInput.add(inputArea.getText());
                   inputArea.setText("");
               } else if (event.getKeyCode() == KeyEvent.VK_ENTER) {
                   inputArea.insert("\n", inputArea.getCaretPosition());
@@ -255,12 +260,7 @@ public class SwingUI extends TextUI {
     String getUserInput(){
         String rv = null;
         try {
-            Thread.sleep (100);
-            while (newInput == null){
-                Thread.sleep (100);
-            }
-            rv = newInput;
-            newInput = null;
+            rv = newInput.take();
             //Logger.log(Level.CONFIG, "isEventDispatchThread: "+javax.swing.SwingUtilities.isEventDispatchThread());
             Runnable runInEventDispatchThread = new Runnable() {  
                 public void run() {     
@@ -313,9 +313,21 @@ public class SwingUI extends TextUI {
 
     }
     
+    @Override
+    void connected(){
+        // the subscription was for the old connection
+        presence.reset();
+    }
+
     @Override
     void writeServerMessage(final Message message){
         if (message.messageType == MessageType.WHOSONLINE){
+            if (!presence.apply(message)){
+                Logger.log(Level.FINE, "Missed a change of who is online, subscribing again");
+                subscribePresence();
+                return;
+            }
+            final String online = presence.list();
             //writeConversationMessage(message, STYLE_STATUS );
             Runnable runInEventDispatchThread = new Runnable() {  
                 public void run() {     
@@ -323,7 +335,7 @@ public class SwingUI extends TextUI {
                         Logger.log(Level.FINER, "Updating notification area with Online status");
                         notificationField.setCaretPosition(0);
                         notificationField.setText("");
-                        notificationDoc.insertString( 0, "Online: "+message.messageBody, 
+                        notificationDoc.insertString( 0, "Online: "+online, 
                             notificationDoc.getStyle(STYLE_STATUS ));
                     } catch (BadLocationException ble){
                         //
@@ -412,6 +424,14 @@ public class SwingUI extends TextUI {
         }
     }
 
+    // the hub pushes who joins and leaves; a hub that doesn't just answers, so this is asked again and again
+    private void subscribePresence(){
+        Message msg = new Message(userName, MessageType.WHOSONLINE, Presence.SUBSCRIBE);
+        if (!messageQueue.offer(msg)){
+            Logger.log (Level.FINE, "Message queue full when adding whosonline message.");
+        }
+    }
+
     class WhosOnlineThread extends TimerTask {
         
         public WhosOnlineThread () {
@@ -420,12 +440,9 @@ public class SwingUI extends TextUI {
         @Override
         public void run() {
             
-            if ( ! serverNotResponding.get() ){
+            if ( ! serverNotResponding.get() && ! presence.isSubscribed() ){
                 Logger.log (Level.FINEST, "WhosOnline pinging");
-                Message msg = new Message(userName, MessageType.WHOSONLINE, "WHO");
-                if (!messageQueue.offer(msg)){
-                    Logger.log (Level.FINE, "Message queue full when adding whosonline message.");
-                }
+                subscribePresence();
             }
         }
         
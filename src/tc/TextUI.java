@@ -2,13 +2,10 @@ package tc;
 
 import static tc.Message.MessageType;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.net.ConnectException;
 import java.net.InetAddress;
 import java.net.NoRouteToHostException;
@@ -19,20 +16,22 @@ import java.net.UnknownHostException;
 import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.util.Collections;
-import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Scanner;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
@@ -51,12 +50,14 @@ import javax.crypto.spec.SecretKeySpec;
 public class TextUI {
 
     // static fields for this class only
-    private static final int POLLING_INTERVAL = 1000;
     // how many heartbeats not returned from server before giving up?
     private static final int HEARTBEAT_GRACE_PERIOD = 1;
+    // how many user messages may be on their way to the hub without an ACK
+    private static final int SEND_WINDOW = 32;
+    // how many messages max. in memory waiting to be sent
+    private static final int MAX_QUEUED = 200;
     // how many entries max. for LRU caches
     private static final int MAX_ENTRIES_LRU = 200;
-    private static final String ENC_UTF8 = "UTF-8";
 
     static final String SECRET_LOG = "LOG";
     static final String SECRET_WHO = "WHO";
@@ -69,8 +70,8 @@ public class TextUI {
     ObjectCrypter objCrypt = null;
     Tray tray;
     String userName;
-    // BlockingQueue is thread-safe
-    ArrayBlockingQueue<Message> messageQueue = new ArrayBlockingQueue<Message>(200);
+    // thread-safe; user messages in the drafts file if there is one
+    Drafts messageQueue;
     long bytesSent = 0l;
     long bytesReceived = 0l;
     long messagesSent = 0l;
@@ -78,16 +79,31 @@ public class TextUI {
     
 
     // private fields for this class only
+    // ACK timeouts of all TextUIs in this process (LoadUI has hundreds); survives reconnects
+    private static final Timer ackTimer = new Timer("AckTimer", true);
     private Timer heartbeatTimer;
     private Scanner scanner;
-    private BufferedWriter srvOutWriter;
-    private BufferedReader srvInReader;
+    private OutputStream srvOut;
+    private InputStream srvIn;
+    // protocol version to ask for, and the framing in use on the current connection
+    private String protocolVersion = Hub.VERSION;
+    private Framing framing = Framing.TEXT;
+    // ask for a compressed connection; dropped if the hub doesn't know it
+    private boolean useCompression;
+    // stamp the user messages on their way, see Trace
+    private boolean useTrace;
+    // of the current connection, null if not compressed
+    private Deflater deflater;
+    private Inflater inflater;
     private boolean showPopups = true;
     private String host;
     private int port;
     private int localPort = 0;
     private Socket remoteSocket;
-    private Map<String, Message> sentMessages = Collections.synchronizedMap(new HashMap<String, Message>());
+    // messageId -> message written to the hub and waiting for its ACK
+    private Map<String, PendingAck> pendingAcks = new ConcurrentHashMap<String, PendingAck>();
+    // free places for user messages in pendingAcks
+    private Semaphore sendWindow = new Semaphore(SEND_WINDOW);
     private byte[] initializationVector = new byte[]{0x05, 0x06, 0x07, 0x08, 0x09, 0x04, 0x03, 0x01};
     
     // receivedMessageIds only used in receivethread, therefore thread-safe
@@ -111,6 +127,8 @@ public class TextUI {
     private AtomicInteger heartbeatsSent = new AtomicInteger();
     
     private boolean useEncryption;
+    // "-e gcm" instead of the RC4 streams: GcmTransport records after the VERSION ACK
+    private byte[] gcmKey;
     private Cipher decCipher;
     private Cipher encCipher;
     private byte[] defaultKey = new byte[]{-25,101,-45,12,93,-38,-56,-7,-99,109,-83,78,-90,90,96,106};
@@ -118,6 +136,8 @@ public class TextUI {
     
     AtomicBoolean serverNotResponding = new AtomicBoolean(true);
     private AtomicLong lastMessageTime = new AtomicLong(-1);
+    // highest sequence number of a message from the hub, 0 if none (only binary frames have them)
+    private AtomicLong lastSeq = new AtomicLong();
     
     private int heartbeatInterval;
     
@@ -127,7 +147,12 @@ public class TextUI {
         localPort = options.optLocalPort;
         setPopups (options.optPopups);
         if (options.optUseEncryption) {
-            setEncryption(options.optSecretKey);
+            if (Options.CIPHER_GCM.equals(options.optCipher)) {
+                gcmKey = options.optSecretKey == null ? defaultKey : options.optSecretKey;
+                Logger.log(Level.INFO, "Encryption: " + Options.CIPHER_GCM);
+            } else {
+                setEncryption(options.optSecretKey);
+            }
         }
         if (options.optUsePayloadEncryption){
             objCrypt = new ObjectCrypter(new byte[]{0x01, 0x02, 0x03, 0x04, 0x05, 0x06, 0x07, 0x08}/*options.optSecretKey*/, initializationVector);
@@ -148,6 +173,15 @@ public class TextUI {
         Logger.log(Level.INFO, "  -- user "+userName);
 
         heartbeatInterval = options.optHeartbeat;
+        messageQueue = new Drafts(MAX_QUEUED, options.optDraftsFile);
+        if (Options.WIRE_FORMAT_BINARY.equals(options.optWireFormat)) {
+            protocolVersion = Hub.VERSION_BINARY;
+        }
+        useCompression = options.optCompression;
+        useTrace = options.optTrace;
+        if (useTrace && !Hub.VERSION_BINARY.equals(protocolVersion)) {
+            Logger.log(Level.WARNING, "Trace stamps need binary frames (-w binary), text frames lose them.");
+        }
 
         if (options.optPopups) tray = new Tray(this);
         
@@ -156,38 +190,35 @@ public class TextUI {
     }
     
     void sendMessage (Message msg) throws IOException {
-        if (srvOutWriter == null) return;
+        if (srvOut == null) return;
 
-        String ms = msg.toStructuredString();
-        srvOutWriter.write(ms);
-        srvOutWriter.write(Options.EOL);
-        srvOutWriter.flush();
+        byte[] frame = framing.encode(msg);
+        srvOut.write(frame);
+        srvOut.flush();
 
-        bytesSent += ms.length();
+        bytesSent += frame.length;
         messagesSent++;
-        Logger.log(Level.FINEST, String.format("Sent %10d bytes, total %s in %5d messages", ms.length(), 
-            formatBytes(bytesSent), messagesSent));
+        if (Logger.isLoggable(Level.FINEST)) Logger.log(Level.FINEST, "Sent %10d bytes, total %s in %5d messages", frame.length, 
+            formatBytes(bytesSent), messagesSent);
         
         if (MessageType.USERMSG == msg.messageType && tray != null) tray.resetAlert();
     }
         
     private Message receiveMessage () throws IOException, Message.MessageException {
-        if (srvInReader == null) return null;
+        if (srvIn == null) return null;
         
-        StringBuilder msgStr = new StringBuilder();
-        int c;
-        while ((c = srvInReader.read()) != -1 && c != Options.EOL){
-            msgStr.append((char)c);
+        Message msg = framing.read(srvIn);
+        if (msg == null){
+            throw new Message.MessageException("Connection closed by hub.");
         }
-        
-        Message msg = new Message(msgStr.toString());
-        if (msg != null){
-            String ms = msg.toStructuredString();
-            Logger.log (Level.FINEST, "Received message: " + ms);
-            bytesReceived += ms.length();
-            messagesReceived++;
-            Logger.log(Level.FINEST, String.format("Received %10d bytes, total %s in %5d messages", ms.length(), 
-                formatBytes(bytesReceived), messagesReceived));
+        // approximately, the framing doesn't tell
+        int length = msg.toStructuredString().length();
+        bytesReceived += length;
+        messagesReceived++;
+        if (Logger.isLoggable(Level.FINEST)) {
+            Logger.log (Level.FINEST, "Received message: " + msg.toStructuredString());
+            Logger.log(Level.FINEST, "Received %10d bytes, total %s in %5d messages", length, 
+                formatBytes(bytesReceived), messagesReceived);
         }
         
         return msg;
@@ -211,21 +242,42 @@ public class TextUI {
         } catch (IOException ioe){
             Logger.log(Level.WARNING, "Couldn't close socket: ", ioe);
         }
+        closeStreams();
+
+        messageQueue.close();
+
+        logStats();
+            
+    }
+
+    // after the socket: a DeflaterOutputStream writes its end on close, which fails then
+    private void closeStreams (){
         try {
-            if (srvOutWriter != null) srvOutWriter.close();
+            if (srvOut != null) srvOut.close();
         } catch (IOException ioe){
-            Logger.log(Level.WARNING, "Couldn't close outputstream: ", ioe);
+            Logger.log(Level.FINE, "Couldn't close outputstream: ", ioe);
         }
         try {
-            if (srvInReader != null) srvInReader.close();
+            if (srvIn != null) srvIn.close();
         } catch (IOException ioe){
-            Logger.log(Level.WARNING, "Couldn't close inputstream: ", ioe);
+            Logger.log(Level.FINE, "Couldn't close inputstream: ", ioe);
         }
+    }
 
+    private void logStats (){
         Logger.log(Level.WARNING, String.format("Sent total     %s in %5d messages", formatBytes(bytesSent), messagesSent));
         Logger.log(Level.WARNING, String.format("Received total %s in %5d messages; altogether %10s", 
             formatBytes(bytesReceived), messagesReceived, formatBytes(bytesReceived+bytesSent)));
-            
+        Deflater def = deflater;
+        Inflater inf = inflater;
+        if (def != null && inf != null) {
+            Logger.log(Level.WARNING, String.format("Compressed     sent %s -> %s, received %s <- %s (this connection)",
+                formatBytes(def.getBytesRead()), formatBytes(def.getBytesWritten()),
+                formatBytes(inf.getBytesWritten()), formatBytes(inf.getBytesRead())));
+        }
+        for (Histogram h : Trace.client.histograms()) {
+            Logger.log(Level.WARNING, h.toString());
+        }
     }
     
     void connect (long connectionLostTime) throws IOException {
@@ -239,11 +291,15 @@ public class TextUI {
 
         
         if (remoteSocket != null) remoteSocket.close();
-        if (srvOutWriter != null) srvOutWriter.close();
-        if (srvInReader != null) srvInReader.close();
+        closeStreams();
         if (heartbeatTimer != null) heartbeatTimer.cancel();
         if (sendThread != null) sendThread.shutdown();
         if (receiveThread != null) receiveThread.shutdown();
+        // what the old connection hasn't had ACKed is sent first, in its order; waiting
+        // for the ACK timeouts would let the messages written after it overtake it
+        for (PendingAck pending : pendingAcks.values()) {
+            pending.fail();
+        }
         
         if (localPort != 0) {
             InetAddress localAddr = InetAddress.getLocalHost();
@@ -262,14 +318,16 @@ public class TextUI {
                     InputStream srvIs = remoteSocket.getInputStream();
                     if (useEncryption) {
                         Logger.log(Level.FINE, "Initializing cipher streams");
-                        srvInReader = new BufferedReader(new InputStreamReader(
-                                new CipherInputStream(srvIs, decCipher), ENC_UTF8));
-                        srvOutWriter = new BufferedWriter(new OutputStreamWriter(
-                                new CipherOutputStream(srvOs, encCipher), ENC_UTF8));
-                    } else {
-                        srvOutWriter = new BufferedWriter(new OutputStreamWriter(srvOs, ENC_UTF8));
-                        srvInReader = new BufferedReader(new InputStreamReader(srvIs, ENC_UTF8));
+                        srvIs = new CipherInputStream(srvIs, decCipher);
+                        srvOs = new CipherOutputStream(srvOs, encCipher);
                     }
+                    // unbuffered: every write is one complete frame, and nothing is left over when the socket fails
+                    srvOut = srvOs;
+                    srvIn = new BufferedInputStream(srvIs);
+                    // the handshake starts in text and uncompressed
+                    framing = Framing.TEXT;
+                    deflater = null;
+                    inflater = null;
                 } catch (NoRouteToHostException re){
                     socketOK = false;
                     Logger.log (Level.INFO, "Host " + host + " seems to be offline " + 
@@ -308,14 +366,74 @@ public class TextUI {
                 // don't want to wait forever on inputstream.read()
                 remoteSocket.setSoTimeout(heartbeatInterval); 
                 
-                Message versionMsg = new Message(userName, MessageType.VERSION, Hub.VERSION);
+                String version = protocolVersion;
+                if (useCompression) version += Hub.CAPABILITY_SEPARATOR + Hub.CAPABILITY_DEFLATE;
+                // new keys for every connection
+                String gcmNonce = null;
+                if (gcmKey != null) {
+                    gcmNonce = GcmTransport.newNonce();
+                    version += Hub.CAPABILITY_SEPARATOR + Hub.CAPABILITY_GCM + "=" + gcmNonce;
+                }
+                Message versionMsg = new Message(userName, MessageType.VERSION, version);
                 sendMessage(versionMsg);
                 try {
                     Message ackMsg = receiveMessage();
+                    // the hub's nonce of the gcm keys comes with its ACK
+                    String hubNonce = null;
+                    if (gcmNonce != null && ackMsg != null) {
+                        hubNonce = Hub.capabilityValue(ackMsg.messageBody, Hub.CAPABILITY_GCM);
+                        if (hubNonce != null) ackMsg.messageBody = Hub.protocolVersion(ackMsg.messageBody);
+                    }
                     if ( ! Message.verifyAck(versionMsg, ackMsg)) {
+                        if (useCompression) {
+                            // older hub, try again without
+                            Logger.log(Level.WARNING, "Hub doesn't support compression, continuing without: " +
+                                    ackMsg.toStructuredString());
+                            useCompression = false;
+                            remoteSocket.close();
+                            closeStreams();
+                            socketOK = false;
+                            continue;
+                        }
+                        if (Hub.VERSION_BINARY.equals(protocolVersion)) {
+                            // older hub
+                            Logger.log(Level.WARNING, "Hub doesn't speak " + protocolVersion + ", falling back to " + 
+                                    Hub.VERSION + ": " + ackMsg.toStructuredString());
+                            protocolVersion = Hub.VERSION;
+                            // closing the cipher streams also resets the ciphers
+                            remoteSocket.close();
+                            closeStreams();
+                            socketOK = false;
+                            continue;
+                        }
                         Logger.log(Level.SEVERE, "Expected version ACK, but got: " + ackMsg.toStructuredString());
                         System.exit(1);
                     }
+                    framing = Framing.forVersion(protocolVersion);
+                    if (gcmNonce != null) {
+                        if (hubNonce == null) {
+                            Logger.log(Level.SEVERE, "Hub didn't send its AES/GCM nonce: " + ackMsg.toStructuredString());
+                            System.exit(1);
+                        }
+                        // one record per flush, below the compression
+                        try {
+                            GcmTransport[] gcm = GcmTransport.forClient(gcmKey, gcmNonce, hubNonce);
+                            srvOut = new GcmTransport.SealingOutputStream(srvOut, gcm[0]);
+                            srvIn = new BufferedInputStream(new GcmTransport.OpeningInputStream(srvIn, gcm[1]));
+                        } catch (GeneralSecurityException gse) {
+                            Logger.log(Level.SEVERE, "No AES/GCM encryption", gse);
+                            System.exit(1);
+                        }
+                        Logger.log(Level.FINE, "AES/GCM on");
+                    }
+                    if (useCompression) {
+                        // the hub compresses everything after its ACK; sync flush, so every frame goes out whole
+                        deflater = new Deflater();
+                        inflater = new Inflater();
+                        srvOut = new DeflaterOutputStream(srvOut, deflater, true);
+                        srvIn = new BufferedInputStream(new InflaterInputStream(srvIn, inflater));
+                        Logger.log(Level.FINE, "Compression on");
+                    }
                 } catch (Message.MessageException iae) {
                     Logger.log (Level.SEVERE, "Expected version Ack message.", iae);
                     socketOK = false;
@@ -323,15 +441,13 @@ public class TextUI {
                 } catch (SocketTimeoutException ste) {
                     Logger.log (Level.WARNING, "VERSION timeout.");
                     remoteSocket.close();
-                    srvOutWriter.close();
-                    srvInReader.close();
+                    closeStreams();
                     socketOK = false;
                     continue;
                 } catch (SocketException se) {
                     Logger.log (Level.WARNING, "Socket reset on VERSION.");
                     remoteSocket.close();
-                    srvOutWriter.close();
-                    srvInReader.close();
+                    closeStreams();
                     socketOK = false;
                     continue;
                 }
@@ -393,11 +509,17 @@ public class TextUI {
         remoteSocket.setSoTimeout(heartbeatInterval*2); 
 
         
-        Message msg = new Message(userName, MessageType.ARCHIVE, String.valueOf(connectionLostTime));
+        // only what has been missed, if the hub has told us where we are
+        String archiveRequest = String.valueOf(connectionLostTime);
+        if (framing == Framing.BINARY && lastSeq.get() > 0) {
+            archiveRequest = Connection.ARCHIVE_SEQ + lastSeq.get() + "," + connectionLostTime;
+        }
+        Message msg = new Message(userName, MessageType.ARCHIVE, archiveRequest);
         if (!messageQueue.offer(msg)){
             Logger.log (Level.WARNING, "Message queue full when adding user message after handshake, can't happen.");
         }
 
+        connected();
         receiveThread = new ReceiveThread();
         sendThread = new SendThread(userName, false);
         receiveThread.start();
@@ -422,6 +544,31 @@ public class TextUI {
     }
 
     
+    // hooks for LoadUI: a message is being written to the hub / its ACK has arrived
+    void messageSent(Message message){
+    }
+
+    void messageAcked(Message message){
+    }
+
+    /** A new connection to the hub has been established, its threads are about to start. */
+    void connected(){
+    }
+
+    /** The hub has sent all archived messages asked for with "request". */
+    void archiveReplayed(Message request, int messages){
+        Logger.log(Level.FINE, "Archive complete, " + messages + " message(s) since " + request.messageBody);
+    }
+
+    /** Close the socket as if the network had failed; the heartbeat timer reconnects. */
+    void dropConnection(){
+        try {
+            if (remoteSocket != null) remoteSocket.close();
+        } catch (IOException ioe){
+            Logger.log(Level.FINE, "While dropping connection: ", ioe);
+        }
+    }
+
     // log received text onto console
     void writeServerMessage(Message message){
         if (usePayloadEncryption){
@@ -457,80 +604,45 @@ public class TextUI {
             while (running){
                 Message msg = null;
                 try {
-//                    Logger.log(Level.FINEST, "Polling message queue");
-                    msg = messageQueue.poll(POLLING_INTERVAL, TimeUnit.MILLISECONDS);
+                    msg = messageQueue.take();
                 } catch (InterruptedException e){
-                    Logger.log(Level.WARNING, "while polling", e);
+                    // shutdown()
+                    continue;
+                }
+
+                if (MessageType.USERMSG == msg.messageType && !acquireWindow()){
+                    // shut down while the window was full
+                    requeue(msg);
+                    continue;
                 }
-                if (msg == null) continue;
 
                 Level lvl = Level.FINE;
                 if (MessageType.HEARTBEAT == msg.messageType) lvl = Level.FINEST;
-                Logger.log(lvl, "Sending message from queue: '"+msg.toStructuredString() + "'");
-                
-                synchronized (sentMessages) {
-                    // receive thread might interfere
-                    try {
-                        sendMessage(msg);
-                    } catch (IOException ioe){
-                        running = false;
-                        Logger.log(Level.FINE, "While sending queued message: " + ioe);
-                        setServerNotResponding(true);
-                    }
-                    if (running) {
-                        sentMessages.put(msg.messageId, msg);
-                        if (MessageType.HEARTBEAT != msg.messageType){
-                            // since in receive thread we are only interested in user/archive message ids 
-                            sentMessageIds.put(msg.messageId, null);
-                        }
-                    }
+                if (Logger.isLoggable(lvl)) Logger.log(lvl, "Sending message from queue: '"+msg.toStructuredString() + "'");
+
+                // registered before writing: the ACK may be back before sendMessage() returns
+                PendingAck pending = null;
+                if (MessageType.USERMSG == msg.messageType || MessageType.HEARTBEAT == msg.messageType){
+                    pending = new PendingAck(msg);
+                    pendingAcks.put(msg.messageId, pending);
+                    ackTimer.schedule(pending, heartbeatInterval * HEARTBEAT_GRACE_PERIOD);
                 }
-                
-                if (!running && MessageType.USERMSG == msg.messageType) {
-                    // re-add message on failure
-                    if (!messageQueue.offer(msg)){
-                        Logger.log (Level.FINE, "Message queue full when adding user message.");
+                if (MessageType.HEARTBEAT != msg.messageType){
+                    // since in receive thread we are only interested in user/archive message ids 
+                    synchronized (sentMessageIds) {
+                        sentMessageIds.put(msg.messageId, null);
                     }
-                    Logger.log(Level.FINE, "Failure sending, re-add message: "+msg.messageType+"@"+
-                            msg.messageBody);
-                    continue;
                 }
-                
-                // wait for ACK
-                if (MessageType.USERMSG == msg.messageType || MessageType.HEARTBEAT == msg.messageType){
-                    Logger.log(Level.FINEST, "Waiting for ACK");
-                    boolean acked = false;
-                    long now = System.currentTimeMillis();
-                    while (System.currentTimeMillis() - now < heartbeatInterval * HEARTBEAT_GRACE_PERIOD){
-                        Message ackMsg = sentMessages.get(msg.messageId);
-                        if (ackMsg != null){
-                            if (!ackMsg.acked) {
-                                try {Thread.sleep(100);}
-                                catch (InterruptedException e){
-                                    //nothing to do here
-                                };
-                            } else {
-                                acked = true;
-                                break;
-                            }
-                        } else {
-                            acked = true;
-                            break;
-                        }
-                    
-                    } // while
-                    
-                    if (!acked){
-                        Logger.log(Level.WARNING, "Message not ACKed: " + msg.toStructuredString());
-                        if ( MessageType.HEARTBEAT != msg.messageType){
-                            messageQueue.add(msg);
-                            Logger.log(Level.FINE, "Failure sending, re-add message: "+msg.messageType+"@"+
-                                    msg.messageId);
-                        }
-                    } else {
-                        // TODO: something wrong on connection lost
-                        Logger.log(Level.FINER, "Message ACKed: " + msg.toStructuredString());
-                    }
+                messageSent(msg);
+                Trace.stamp(msg, Trace.SEND);
+
+                try {
+                    sendMessage(msg);
+                } catch (IOException ioe){
+                    running = false;
+                    Logger.log(Level.FINE, "While sending queued message: " + ioe);
+                    setServerNotResponding(true);
+                    if (pending != null) pending.fail();
                 }
             }
             
@@ -538,8 +650,21 @@ public class TextUI {
             shutdown();
         }
         
+        // wait for a free place in the send window
+        private boolean acquireWindow(){
+            try {
+                sendWindow.acquire();
+                return true;
+            } catch (InterruptedException e){
+                // shutdown()
+                return false;
+            }
+        }
+
+        // the thread blocks on the queue and the window until there is work, wake it up
         public void shutdown(){
             running = false;
+            interrupt();
         }
 
         public boolean isRunning() {
@@ -547,10 +672,64 @@ public class TextUI {
         }
     }
 
+    /**
+     * A user message or heartbeat written to the hub and waiting for its ACK.
+     * Finished exactly once: by the ReceiveThread when the ACK arrives, or on
+     * the ackTimer when it hasn't arrived within the heartbeat interval. Then
+     * its place in the send window is free again; a user message without ACK
+     * goes back to the queue to be sent again.
+     */
+    class PendingAck extends TimerTask {
+        final Message msg;
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        PendingAck (Message msg){
+            this.msg = msg;
+        }
+
+        /** The ACK has arrived. */
+        void complete(){
+            if (!finish()) return;
+            cancel();
+            if (Logger.isLoggable(Level.FINER)) Logger.log(Level.FINER, "Message ACKed: " + msg.toStructuredString());
+            messageQueue.acked(msg);
+            messageAcked(msg);
+        }
+
+        /** The message could not be written. */
+        void fail(){
+            if (!finish()) return;
+            cancel();
+            if (MessageType.USERMSG == msg.messageType) requeue(msg);
+        }
+
+        /** ACK timeout. */
+        @Override
+        public void run(){
+            if (!finish()) return;
+            Logger.log(Level.WARNING, "Message not ACKed: " + msg.toStructuredString());
+            if (MessageType.USERMSG == msg.messageType) requeue(msg);
+        }
+
+        private boolean finish(){
+            if (!finished.compareAndSet(false, true)) return false;
+            pendingAcks.remove(msg.messageId, this);
+            if (MessageType.USERMSG == msg.messageType) sendWindow.release();
+            return true;
+        }
+    }
+
+    private void requeue(Message msg){
+        messageQueue.retry(msg);
+        Logger.log(Level.FINE, "Failure sending, re-add message: "+msg.messageType+"@"+msg.messageId);
+    }
+
     // -------------------------ReceiveThread
     
     class ReceiveThread extends Thread {
         private volatile boolean running = true;
+        // ARCHIVEDMSGs since the last complete archive
+        private int archivedMessages;
         
         public ReceiveThread (){
             setName("RcveThread");
@@ -578,38 +757,36 @@ public class TextUI {
                     
                     heartbeatsSent.set(0);
                     setServerNotResponding(false);
+                    if (MessageType.USERMSG == msg.messageType) Trace.client.received(msg);
 
+                    if (MessageType.ARCHIVEDMSG == msg.messageType) archivedMessages++;
                     if (receivedMessageIds.containsKey(msg.messageId)){
                         // probably an archived message that we already got
                         // as a USERMSG
-                        Logger.log (Level.FINEST, "Skipping " + msg.toStructuredString());
+                        if (Logger.isLoggable(Level.FINEST)) Logger.log (Level.FINEST, "Skipping %s", msg.toStructuredString());
                         continue;
                     }
                     
-                    synchronized (sentMessages){
-                        // it is important only to check this after msg has been added to sentMessages
-                        Message m = sentMessages.get(msg.messageId);
-                        if ((m != null) && (!m.acked)){
-                            if (Message.verifyAck(m, msg)) {
-                                m.acked = true;
-                                setServerNotResponding(false);
-                                Logger.log(Level.FINEST, "  ACK, Removing from sentMessages: "+msg.toStructuredString());
-                                sentMessages.remove(msg.messageId);
-                            } else {
-                                // most likely race condition on message id (other client has created same message id)
-                                Logger.log (Level.WARNING, "Could not verify ACK message: " + msg.toStructuredString());
-                            }
+                    PendingAck pending = pendingAcks.get(msg.messageId);
+                    if (pending != null){
+                        if (Message.verifyAck(pending.msg, msg)) {
+                            if (Logger.isLoggable(Level.FINEST)) Logger.log(Level.FINEST, "  ACK: %s", msg.toStructuredString());
+                            pending.complete();
+                            setServerNotResponding(false);
                         } else {
-                            if (MessageType.HEARTBEAT == msg.messageType)
-                                    Logger.log(Level.WARNING, "Received unsolicited heartbeat: " + 
-                                            msg.toStructuredString());
-                            if (MessageType.ARCHIVEDMSG == msg.messageType)
-                                setServerNotResponding(false);
+                            // most likely race condition on message id (other client has created same message id)
+                            Logger.log (Level.WARNING, "Could not verify ACK message: " + msg.toStructuredString());
                         }
+                    } else {
+                        if (MessageType.HEARTBEAT == msg.messageType)
+                                Logger.log(Level.WARNING, "Received unsolicited heartbeat: " + 
+                                        msg.toStructuredString());
+                        if (MessageType.ARCHIVEDMSG == msg.messageType)
+                            setServerNotResponding(false);
                     }
                         
                     boolean inSentMessages = false;
-                    synchronized (sentMessages){
+                    synchronized (sentMessageIds){
                         inSentMessages = sentMessageIds.containsKey(msg.messageId);
                     }
                     if ((MessageType.USERMSG == msg.messageType || MessageType.ARCHIVEDMSG == msg.messageType)
@@ -626,6 +803,10 @@ public class TextUI {
                         }
                     } else if (MessageType.HEARTBEAT == msg.messageType){
                         Logger.log (Level.FINEST, "return heartbeat from server");
+
+                    } else if (MessageType.ARCHIVE == msg.messageType && "ACK".equals(msg.messageBody)){
+                        archiveReplayed(msg, archivedMessages);
+                        archivedMessages = 0;
                     
                     } else if (MessageType.WHOSONLINE == msg.messageType){
                         Logger.log (Level.INFO, "Online users: " + msg.messageBody);
@@ -635,6 +816,7 @@ public class TextUI {
                     }
 
                     lastMessageTime.set(msg.timeStamp);
+                    if (msg.seq > lastSeq.get()) lastSeq.set(msg.seq);
                     
                 } catch (SocketException se){
                     Logger.log(Level.WARNING, "Socket closed while reading");
@@ -715,7 +897,7 @@ public class TextUI {
                     for (int i = 0; i < sb.length(); i++){
                         if ((int)sb.charAt(i) == 0 || sb.charAt(i) == Message.FS) {
                             sb.deleteCharAt(i);
-                            Logger.log(Level.FINEST, String.format("Removing invalid character at position %d", i));
+                            Logger.log(Level.FINEST, "Removing invalid character at position %d", i);
                         }
                     }
                     input = sb.toString();
@@ -736,9 +918,7 @@ public class TextUI {
                             continue;
                         }
                     } else if (input.equals(SECRET_STATS)) {
-                        Logger.log(Level.WARNING, String.format("Sent total     %s in %5d messages", formatBytes(bytesSent), messagesSent));
-                        Logger.log(Level.WARNING, String.format("Received total %s in %5d messages; altogether %10s", 
-                            formatBytes(bytesReceived), messagesReceived, formatBytes(bytesReceived+bytesSent)));
+                        logStats();
                         // don't send to server
                         continue;
                     }
@@ -747,6 +927,7 @@ public class TextUI {
                         input = objCrypt.encryptString(input);
                     }
                     Message msg = new Message(userName, msgType, input);
+                    if (useTrace && MessageType.USERMSG == msgType) Trace.start(msg);
                     if (!messageQueue.offer(msg)){
                         Logger.log (Level.WARNING, "Message queue full when adding user message.");
                     }
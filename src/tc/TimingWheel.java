@@ -0,0 +1,160 @@
+package tc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+
+/**
+ * Deadlines of many connections on one thread: a hashed timing wheel. Time
+ * is cut into ticks; a timeout is kept in the slot of the tick of its
+ * deadline, slot = tick modulo the number of slots. Once a tick is over, the
+ * thread takes the whole slot at once and runs the tasks of the timeouts that
+ * are due, in one batch.
+ * <p>
+ * Moving a deadline ({@link Timeout#rearm(long)}) is a volatile write and
+ * doesn't touch the wheel, so it can be done for every read from a
+ * connection. A timeout stays in its slot until the slot comes up; if its
+ * deadline has been moved, it is put into the slot of the new deadline then
+ * (or into the same slot again, one turn later, for deadlines further ahead
+ * than the wheel is long). Cancelled timeouts are dropped at that point.
+ * <p>
+ * The wheel has its own clock, in milliseconds ({@link #now()}); it doesn't
+ * jump with the wall clock.
+ *
+ * @author ok
+ *
+ */
+final class TimingWheel {
+
+    private final long tickMillis;
+    private final List<List<Timeout>> slots;
+    private final long origin = System.nanoTime();
+    // the next tick to be processed; guarded by this
+    private long tick;
+    // the clock at the last tick, for cheap deadlines
+    private volatile long now;
+
+    TimingWheel (String name, long tickMillis, int slotCount){
+        this.tickMillis = tickMillis;
+        this.slots = new ArrayList<List<Timeout>>(slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            slots.add(new ArrayList<Timeout>());
+        }
+        Thread thread = new Thread(name) {
+            @Override
+            public void run (){
+                turn();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /** A deadline and what to do when it has passed. */
+    static final class Timeout {
+        private final Runnable task;
+        private volatile long deadline;
+        private volatile boolean cancelled;
+
+        private Timeout (long deadline, Runnable task){
+            this.deadline = deadline;
+            this.task = task;
+        }
+
+        /** Move the deadline; cheap, see the class comment. */
+        void rearm (long deadline){
+            this.deadline = deadline;
+        }
+
+        void cancel (){
+            cancelled = true;
+        }
+    }
+
+    /** The wheel's clock, as of the last tick; good enough for deadlines of a tick or more. */
+    long now (){
+        return now;
+    }
+
+    /** Run the task once the deadline (on the wheel's clock) has passed, on the wheel's thread. */
+    Timeout schedule (long deadline, Runnable task){
+        Timeout timeout = new Timeout(deadline, task);
+        synchronized (this) {
+            add(timeout);
+        }
+        return timeout;
+    }
+
+    // with the lock held; a deadline that is over already goes into the next slot to come up
+    private void add (Timeout timeout){
+        long when = Math.max(timeout.deadline / tickMillis, tick);
+        slots.get((int) (when % slots.size())).add(timeout);
+    }
+
+    private long clock (){
+        return (System.nanoTime() - origin) / 1000000;
+    }
+
+    private void turn (){
+        List<Timeout> due = new ArrayList<Timeout>();
+        List<Timeout> later = new ArrayList<Timeout>();
+        List<Timeout> expired = new ArrayList<Timeout>();
+        while (true) {
+            long time = clock();
+            now = time;
+            synchronized (this) {
+                long current = time / tickMillis;
+                // after a long stop, one turn of the wheel has everything
+                if (current - tick > slots.size()) tick = current - slots.size();
+                while (tick < current) {
+                    List<Timeout> slot = slots.get((int) (tick % slots.size()));
+                    due.addAll(slot);
+                    slot.clear();
+                    tick++;
+                }
+            }
+
+            for (Timeout timeout : due) {
+                if (timeout.cancelled) continue;
+                if (timeout.deadline > time) {
+                    later.add(timeout);
+                } else {
+                    expired.add(timeout);
+                }
+            }
+            if (!later.isEmpty()) {
+                synchronized (this) {
+                    for (Timeout timeout : later) {
+                        add(timeout);
+                    }
+                }
+            }
+            for (Timeout timeout : expired) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException re) {
+                    Logger.log(Level.SEVERE, "Timeout task failed", re);
+                }
+            }
+            if (!expired.isEmpty() && Logger.isLoggable(Level.FINE)) {
+                Logger.log(Level.FINE, "%d timeout(s) expired", expired.size());
+            }
+            due.clear();
+            later.clear();
+            expired.clear();
+
+            long sleep;
+            synchronized (this) {
+                sleep = (tick + 1) * tickMillis - clock();
+            }
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+}
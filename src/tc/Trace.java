@@ -0,0 +1,123 @@
+package tc;
+
+/**
+ * Trace stamps of a user message on its way from the sender's input to the
+ * recipients, to see which hop is slow. A TextUI started with "-t" gives its
+ * user messages a {@link Message#trace} and stamps
+ * <ul>
+ * <li>{@link #ENQUEUE} when the message is put into the queue to the hub
+ * <li>{@link #SEND} when the SendThread writes it
+ * </ul>
+ * the hub adds
+ * <ul>
+ * <li>{@link #HUB_RECEIVE} when the message has been read
+ * <li>{@link #FAN_OUT} when it is handed to the connections of the recipients
+ * </ul>
+ * and every recipient measures its own receipt. The stamps travel in binary
+ * frames only (see {@link Framing}); text frames lose them.
+ * <p>
+ * A stamp is in microseconds since the epoch, taken from System.nanoTime()
+ * and aligned with the wall clock once per process. Segments between two
+ * processes (send to hub receive, fan-out to receive) include the difference
+ * of their clocks; on one machine, or with synchronised clocks, it doesn't
+ * matter. Every process keeps histograms of the segments it has seen, the
+ * hub in {@link #hub}, the UIs in {@link #client}.
+ *
+ * @author ok
+ *
+ */
+final class Trace {
+
+    // indexes into Message.trace; part of the protocol, new stamps must be added at the end
+    static final int ENQUEUE = 0;
+    static final int SEND = 1;
+    static final int HUB_RECEIVE = 2;
+    static final int FAN_OUT = 3;
+    static final int STAMPS = 4;
+
+    private static final long BASE_MICROS = System.currentTimeMillis() * 1000;
+    private static final long BASE_NANOS = System.nanoTime();
+
+    static final Trace hub = new Trace();
+    static final Trace client = new Trace();
+
+    final Histogram clientQueue = new Histogram("trace enqueue -> send", "us");
+    final Histogram uplink = new Histogram("trace send -> hub receive", "us");
+    final Histogram hubQueue = new Histogram("trace hub receive -> fan-out", "us");
+    // hub only: handing the message to all connections
+    final Histogram fanOut = new Histogram("trace fan-out start -> end", "us");
+    // recipients only
+    final Histogram downlink = new Histogram("trace fan-out -> receive", "us");
+    final Histogram endToEnd = new Histogram("trace enqueue -> receive", "us");
+
+    private Trace (){
+    }
+
+    static long now (){
+        return BASE_MICROS + (System.nanoTime() - BASE_NANOS) / 1000;
+    }
+
+    /** Start tracing a new message. */
+    static void start (Message msg){
+        long[] trace = new long[STAMPS];
+        trace[ENQUEUE] = now();
+        msg.trace = trace;
+    }
+
+    /** Stamp a message if it is traced. */
+    static void stamp (Message msg, int stamp){
+        long[] trace = msg.trace;
+        if (trace != null) trace[stamp] = now();
+    }
+
+    /**
+     * At the hub, before the broadcast: stamp {@link #FAN_OUT} and record the
+     * segments up to here.
+     * @return the fan-out stamp, or 0 if the message isn't traced
+     */
+    long fanOut (Message msg){
+        long[] trace = msg.trace;
+        if (trace == null) return 0;
+        long now = now();
+        trace[FAN_OUT] = now;
+        segment(clientQueue, trace[ENQUEUE], trace[SEND]);
+        segment(uplink, trace[SEND], trace[HUB_RECEIVE]);
+        segment(hubQueue, trace[HUB_RECEIVE], now);
+        return now;
+    }
+
+    /** At the hub, after the broadcast started at fanOutStart. */
+    void fanOutDone (long fanOutStart){
+        if (fanOutStart != 0) segment(fanOut, fanOutStart, now());
+    }
+
+    /** At a recipient: record all segments of a received message. */
+    void received (Message msg){
+        long[] trace = msg.trace;
+        if (trace == null) return;
+        long now = now();
+        segment(clientQueue, trace[ENQUEUE], trace[SEND]);
+        segment(uplink, trace[SEND], trace[HUB_RECEIVE]);
+        segment(hubQueue, trace[HUB_RECEIVE], trace[FAN_OUT]);
+        segment(downlink, trace[FAN_OUT], now);
+        segment(endToEnd, trace[ENQUEUE], now);
+    }
+
+    // a stamp of 0 is missing (the hop didn't stamp), which is no segment
+    private static void segment (Histogram h, long from, long to){
+        if (from != 0 && to != 0) h.record(to - from);
+    }
+
+    /** The histograms with values, in the order of the hops. */
+    Histogram[] histograms (){
+        Histogram[] all = {clientQueue, uplink, hubQueue, fanOut, downlink, endToEnd};
+        int n = 0;
+        for (Histogram h : all) {
+            if (h.count() > 0) all[n++] = h;
+        }
+        Histogram[] result = new Histogram[n];
+        System.arraycopy(all, 0, result, 0, n);
+        return result;
+    }
+
+}